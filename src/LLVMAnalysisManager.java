@@ -0,0 +1,330 @@
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+import org.llvm4j.llvm4j.Module;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LLVMAnalysisManager {
+    private final Module module;
+
+    private final ConcurrentHashMap<LLVMValueRef, CFG> cfgs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<LLVMValueRef, InstFlow> instFlows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<LLVMValueRef, DomTree> domTrees = new ConcurrentHashMap<>();
+    private CallGraph callGraph;
+
+    public LLVMAnalysisManager(Module module) {
+        this.module = module;
+    }
+
+    public Module getModule() {
+        return module;
+    }
+
+    public CFG getCFG(LLVMValueRef function) {
+        return cfgs.computeIfAbsent(function, CFG::new);
+    }
+
+    public InstFlow getInstFlow(LLVMValueRef function) {
+        return instFlows.computeIfAbsent(function, InstFlow::new);
+    }
+
+    public DomTree getDomTree(LLVMValueRef function) {
+        return domTrees.computeIfAbsent(function, f -> new DomTree(f, getCFG(f)));
+    }
+
+    public synchronized CallGraph getCallGraph() {
+        if (callGraph == null) callGraph = new CallGraph(module);
+        return callGraph;
+    }
+
+    public void invalidate(LLVMValueRef function, Analysis analysis) {
+        switch (analysis) {
+            case CFG:
+                cfgs.remove(function);
+                break;
+            case INST_FLOW:
+                instFlows.remove(function);
+                break;
+            case DOM_TREE:
+                domTrees.remove(function);
+                break;
+        }
+    }
+
+    public void invalidateExcept(LLVMValueRef function, Set<Analysis> preserved) {
+        for (var analysis : Analysis.values())
+            if (!preserved.contains(analysis)) invalidate(function, analysis);
+    }
+
+    public void invalidateAll(LLVMValueRef function) {
+        invalidateExcept(function, EnumSet.noneOf(Analysis.class));
+    }
+
+    public enum Analysis {
+        CFG, INST_FLOW, DOM_TREE
+    }
+
+    private static int[][] invert(int[][] successors) {
+        var count = new int[successors.length];
+        for (var succs : successors)
+            for (var succ : succs) ++count[succ];
+        var predecessors = new int[successors.length][];
+        for (int i = 0; i < successors.length; ++i) predecessors[i] = new int[count[i]];
+        Arrays.fill(count, 0);
+        for (int i = 0; i < successors.length; ++i)
+            for (var succ : successors[i]) predecessors[succ][count[succ]++] = i;
+        return predecessors;
+    }
+
+    private static int[] distinct(int[] ids, int size) {
+        int count = 0;
+        outer:
+        for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < count; ++j)
+                if (ids[j] == ids[i]) continue outer;
+            ids[count++] = ids[i];
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    public static class CFG {
+        public final LLVMNumbering<LLVMBasicBlockRef> blocks = new LLVMNumbering<>();
+        public final int[][] predecessors;
+        public final int[][] successors;
+
+        private CFG(LLVMValueRef function) {
+            for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
+                    block = LLVM.LLVMGetNextBasicBlock(block))
+                blocks.add(block);
+
+            successors = new int[blocks.size()][];
+            for (int id = 0; id < blocks.size(); ++id) {
+                var exitInst = LLVM.LLVMGetBasicBlockTerminator(blocks.get(id));
+                var succ = new int[0];
+                if (exitInst != null && LLVM.LLVMGetInstructionOpcode(exitInst) == LLVM.LLVMBr) {
+                    var countSucc = LLVM.LLVMGetNumSuccessors(exitInst);
+                    succ = new int[countSucc];
+                    for (var i = 0; i < countSucc; ++i)
+                        succ[i] = blocks.idOf(LLVM.LLVMGetSuccessor(exitInst, i));
+                    succ = distinct(succ, countSucc);
+                }
+                successors[id] = succ;
+            }
+            predecessors = invert(successors);
+        }
+    }
+
+    public static class InstFlow {
+        public final LLVMNumbering<LLVMValueRef> instructions = new LLVMNumbering<>();
+        public final int[] blockBegin;
+        public final int[][] predecessors;
+        public final int[][] successors;
+
+        private InstFlow(LLVMValueRef function) {
+            blockBegin = new int[LLVM.LLVMCountBasicBlocks(function) + 1];
+            int blockId = 0;
+            for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
+                    block = LLVM.LLVMGetNextBasicBlock(block)) {
+                blockBegin[blockId++] = instructions.size();
+                for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null;
+                        inst = LLVM.LLVMGetNextInstruction(inst))
+                    instructions.add(inst);
+            }
+            blockBegin[blockId] = instructions.size();
+
+            successors = new int[instructions.size()][];
+            for (int id = 0; id < instructions.size(); ++id) {
+                var inst = instructions.get(id);
+                var succ = new int[0];
+                if (LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMBr) {
+                    var countSucc = LLVM.LLVMGetNumSuccessors(inst);
+                    succ = new int[countSucc];
+                    for (var i = 0; i < countSucc; ++i)
+                        succ[i] = instructions.idOf(LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, i)));
+                    succ = distinct(succ, countSucc);
+                } else if (LLVM.LLVMGetNextInstruction(inst) != null) succ = new int[]{id + 1};
+                successors[id] = succ;
+            }
+            predecessors = invert(successors);
+        }
+    }
+
+    public static class DomTree {
+        public final int[] reversePostOrder;
+        public final int[] idom;
+        public final int[][] children;
+        public final int[][] frontier;
+        public final int[] loopDepth;
+
+        private DomTree(LLVMValueRef function, CFG cfg) {
+            var blockCount = cfg.blocks.size();
+            var entry = cfg.blocks.idOf(LLVM.LLVMGetEntryBasicBlock(function));
+            reversePostOrder = reversePostOrder(cfg.successors, entry);
+            var rank = new int[blockCount];
+            Arrays.fill(rank, -1);
+            for (int i = 0; i < reversePostOrder.length; ++i) rank[reversePostOrder[i]] = i;
+
+            idom = new int[blockCount];
+            Arrays.fill(idom, -1);
+            idom[entry] = entry;
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int i = 1; i < reversePostOrder.length; ++i) {
+                    var bb = reversePostOrder[i];
+                    int newIdom = -1;
+                    for (var pred : cfg.predecessors[bb]) {
+                        if (idom[pred] == -1) continue;
+                        newIdom = newIdom == -1 ? pred : intersect(pred, newIdom, rank);
+                    }
+                    if (idom[bb] != newIdom) {
+                        idom[bb] = newIdom;
+                        changed = true;
+                    }
+                }
+            }
+
+            var parent = new int[blockCount][];
+            for (int bb = 0; bb < blockCount; ++bb)
+                parent[bb] = idom[bb] == -1 || bb == entry ? new int[0] : new int[]{idom[bb]};
+            children = invert(parent);
+
+            var count = new int[blockCount];
+            var buffer = new int[blockCount][];
+            for (int bb = 0; bb < blockCount; ++bb) {
+                if (idom[bb] == -1 || cfg.predecessors[bb].length < 2) continue;
+                for (var pred : cfg.predecessors[bb]) {
+                    if (idom[pred] == -1) continue;
+                    for (var runner = pred; runner != idom[bb]; runner = idom[runner]) {
+                        if (count[runner] > 0 && buffer[runner][count[runner] - 1] == bb) continue;
+                        if (buffer[runner] == null) buffer[runner] = new int[2];
+                        else if (count[runner] == buffer[runner].length)
+                            buffer[runner] = Arrays.copyOf(buffer[runner], count[runner] * 2);
+                        buffer[runner][count[runner]++] = bb;
+                    }
+                }
+            }
+            frontier = new int[blockCount][];
+            for (int bb = 0; bb < blockCount; ++bb)
+                frontier[bb] = buffer[bb] == null ? new int[0] : Arrays.copyOf(buffer[bb], count[bb]);
+
+            loopDepth = new int[blockCount];
+            var inLoop = new boolean[blockCount];
+            var members = new int[blockCount];
+            for (var header : reversePostOrder) {
+                boolean isLoop = false;
+                for (var pred : cfg.predecessors[header]) isLoop |= dominates(header, pred);
+                if (!isLoop) continue;
+
+                int size = 0;
+                inLoop[header] = true;
+                members[size++] = header;
+                for (int i = 0; i < size; ++i) {
+                    var bb = members[i];
+                    for (var pred : cfg.predecessors[bb]) {
+                        if (inLoop[pred] || !dominates(header, pred)) continue;
+                        inLoop[pred] = true;
+                        members[size++] = pred;
+                    }
+                }
+                for (int i = 0; i < size; ++i) {
+                    ++loopDepth[members[i]];
+                    inLoop[members[i]] = false;
+                }
+            }
+        }
+
+        public boolean dominates(int a, int b) {
+            if (!isReachable(b)) return false;
+            while (true) {
+                if (a == b) return true;
+                if (idom[b] == b) return false;
+                b = idom[b];
+            }
+        }
+
+        private static int[] reversePostOrder(int[][] successors, int entry) {
+            var blockCount = successors.length;
+            var visited = new boolean[blockCount];
+            var postOrder = new int[blockCount];
+            var stack = new int[blockCount];
+            var next = new int[blockCount];
+            int top = 0;
+            int count = 0;
+
+            stack[top++] = entry;
+            visited[entry] = true;
+            while (top > 0) {
+                var bb = stack[top - 1];
+                if (next[bb] < successors[bb].length) {
+                    var succ = successors[bb][next[bb]++];
+                    if (visited[succ]) continue;
+                    visited[succ] = true;
+                    stack[top++] = succ;
+                } else postOrder[count++] = stack[--top];
+            }
+
+            var result = new int[count];
+            for (int i = 0; i < count; ++i) result[i] = postOrder[count - 1 - i];
+            return result;
+        }
+
+        private int intersect(int a, int b, int[] rank) {
+            while (a != b) {
+                while (rank[a] > rank[b]) a = idom[a];
+                while (rank[b] > rank[a]) b = idom[b];
+            }
+            return a;
+        }
+
+        public boolean isReachable(int bb) {
+            return idom[bb] != -1;
+        }
+    }
+
+    public static class CallGraph {
+        private final HashMap<LLVMValueRef, HashSet<LLVMValueRef>> callers = new HashMap<>();
+        private final HashMap<LLVMValueRef, HashSet<LLVMValueRef>> callees = new HashMap<>();
+
+        private CallGraph(Module module) {
+            var ref = module.getRef();
+            for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
+                update(func);
+        }
+
+        private static HashSet<LLVMValueRef> collectCallees(LLVMValueRef function) {
+            var result = new HashSet<LLVMValueRef>();
+            for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
+                    block = LLVM.LLVMGetNextBasicBlock(block))
+                for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null;
+                        inst = LLVM.LLVMGetNextInstruction(inst)) {
+                    if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMCall) continue;
+                    var callee = LLVM.LLVMIsAFunction(LLVM.LLVMGetCalledValue(inst));
+                    if (callee != null) result.add(callee);
+                }
+            return result;
+        }
+
+        public Set<LLVMValueRef> getCallers(LLVMValueRef function) {
+            return callers.getOrDefault(function, new HashSet<>());
+        }
+
+        public Set<LLVMValueRef> getCallees(LLVMValueRef function) {
+            return callees.getOrDefault(function, new HashSet<>());
+        }
+
+        public boolean update(LLVMValueRef function) {
+            var newCallees = collectCallees(function);
+            var oldCallees = callees.put(function, newCallees);
+            if (newCallees.equals(oldCallees)) return false;
+            if (oldCallees != null) oldCallees.forEach(callee -> callers.get(callee).remove(function));
+            newCallees.forEach(callee -> callers.computeIfAbsent(callee, k -> new HashSet<>()).add(function));
+            return true;
+        }
+    }
+}
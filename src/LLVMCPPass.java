@@ -1,11 +1,11 @@
 import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
-import org.llvm4j.llvm4j.Module;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.EnumSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.BiFunction;
 
 public class LLVMCPPass extends LLVMPass {
@@ -17,154 +17,242 @@ public class LLVMCPPass extends LLVMPass {
             Map.entry(LLVM.LLVMIntSLT, (x, y) -> x < y ? 1 : 0), Map.entry(LLVM.LLVMIntSGE, (x, y) -> x >= y ? 1 : 0),
             Map.entry(LLVM.LLVMIntSGT, (x, y) -> x > y ? 1 : 0));
 
-    private final HashSet<LLVMValueRef> worklist = new HashSet<>();
-    private final HashMap<LLVMValueRef, DataFacts> ins = new HashMap<>();
-    private final HashMap<LLVMValueRef, DataFacts> outs = new HashMap<>();
-
-    public LLVMCPPass(Module module) {
-        super(module);
+    private final LLVMNumbering<LLVMValueRef> nonInstVariables = new LLVMNumbering<>();
+    private final BitSet globals = new BitSet();
+    private final BitSet worklist = new BitSet();
+    private int[] rpo;
+    private int[] rpoRank;
+    private DataFacts entryFacts;
+    private DataFacts[] ins;
+    private DataFacts[] outs;
+    private int[] feasibleSuccessors;
+    private int variableCount;
+    private boolean branchFolded;
+
+    public LLVMCPPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        super(analysisManager, function);
     }
 
     @Override
     protected void prepare() {
         super.prepare();
         calculateInst();
-        instSuccessors.clear();
-        instPredecessors.clear();
-        allInstructions.forEach(inst -> instSuccessors.put(inst, new HashSet<>()));
-        allInstructions.forEach(inst -> instPredecessors.put(inst, new HashSet<>()));
         calculateBB();
 
         var ref = module.getRef();
-        LLVMValueRef entry = null;
-        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
-            entry = LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetEntryBasicBlock(func));
-
-        allInstructions.forEach(inst -> {
-            ins.put(inst, new DataFacts());
-            outs.put(inst, new DataFacts());
-        });
+        var isMain = "main".equals(LLVM.LLVMGetValueName(function).getString());
+        var instCount = allInstructions.size();
+        for (var global = LLVM.LLVMGetFirstGlobal(ref); global != null; global = LLVM.LLVMGetNextGlobal(global))
+            globals.set(instCount + nonInstVariables.add(global));
+        var paramCnt = LLVM.LLVMCountParams(function);
+        for (int i = 0; i < paramCnt; ++i) nonInstVariables.add(LLVM.LLVMGetParam(function, i));
+        variableCount = instCount + nonInstVariables.size();
+
+        var blockCount = allBasicBlocks.size();
+        ins = new DataFacts[blockCount];
+        outs = new DataFacts[blockCount];
+        feasibleSuccessors = new int[blockCount];
+
+        entryFacts = new DataFacts(variableCount);
+        for (var id = globals.nextSetBit(0); id >= 0; id = globals.nextSetBit(id + 1)) {
+            if (!isMain) {
+                entryFacts.put(id, Ref.REF_NON_CONSTANT);
+                continue;
+            }
 
-        for (var global = LLVM.LLVMGetFirstGlobal(ref); global != null; global = LLVM.LLVMGetNextGlobal(global)) {
-            var initializer = LLVM.LLVMGetInitializer(global);
+            var initializer = LLVM.LLVMGetInitializer(nonInstVariables.get(id - instCount));
             int value = 0;
             if (!initializer.isNull()) {
                 var constant = LLVM.LLVMIsAConstantInt(initializer);
                 if (constant != null) value = Math.toIntExact(LLVM.LLVMConstIntGetSExtValue(constant));
             }
 
-            ins.get(entry).put(global, new Ref(new Constant(value)));
+            entryFacts.put(id, new Ref(new Constant(value)));
+        }
+        for (int i = 0; i < paramCnt; ++i)
+            entryFacts.put(variableId(LLVM.LLVMGetParam(function, i)), NonConstant.INSTANCE);
+
+        computeRPO(allBasicBlocks.idOf(LLVM.LLVMGetEntryBasicBlock(function)));
+        worklist.set(0);
+    }
+
+    private void computeRPO(int entry) {
+        var blockCount = allBasicBlocks.size();
+        rpo = new int[blockCount];
+        rpoRank = new int[blockCount];
+        var visited = new BitSet(blockCount);
+        var postOrder = new int[blockCount];
+        var stack = new int[blockCount];
+        var next = new int[blockCount];
+        int top = 0;
+        int count = 0;
+
+        stack[top++] = entry;
+        visited.set(entry);
+        while (top > 0) {
+            var bb = stack[top - 1];
+            var succs = bbSuccessors[bb];
+            if (next[bb] < succs.length) {
+                var succ = succs[next[bb]++];
+                if (visited.get(succ)) continue;
+                visited.set(succ);
+                stack[top++] = succ;
+            } else postOrder[count++] = stack[--top];
         }
 
-        worklist.addAll(allInstructions);
+        for (int i = 0; i < count; ++i) rpo[i] = postOrder[count - 1 - i];
+        for (var bb = visited.nextClearBit(0); bb < blockCount; bb = visited.nextClearBit(bb + 1)) rpo[count++] = bb;
+        for (int i = 0; i < blockCount; ++i) rpoRank[rpo[i]] = i;
+    }
+
+    private int variableId(LLVMValueRef value) {
+        var id = allInstructions.idOf(value);
+        if (id != -1) return id;
+        id = nonInstVariables.idOf(value);
+        if (id != -1) return allInstructions.size() + id;
+        return -1;
+    }
+
+    private boolean isFeasible(int from, int to) {
+        var succs = bbSuccessors[from];
+        for (int k = 0; k < succs.length; ++k)
+            if (succs[k] == to) return (feasibleSuccessors[from] & (1 << k)) != 0;
+        return false;
     }
 
     private CPValue valueToCPValue(LLVMValueRef value, DataFacts factsIn) {
         var constant = LLVM.LLVMIsAConstantInt(value);
         if (constant != null) return new Constant(Math.toIntExact(LLVM.LLVMConstIntGetSExtValue(constant)));
-        return factsIn.get(value);
+        var id = variableId(value);
+        if (id == -1) return Undef.INSTANCE;
+        return factsIn.get(id);
     }
 
     private CPValue operandValue(LLVMValueRef value, DataFacts factsIn, int index) {
         return valueToCPValue(LLVM.LLVMGetOperand(value, index), factsIn);
     }
 
-    private DataFacts transfer(DataFacts in, LLVMValueRef inst) {
-        var newOut = in.clone();
+    private boolean isCell(LLVMValueRef pointer) {
+        if (LLVM.LLVMIsAAllocaInst(pointer) != null) return !LLVMLiveIntervals.isArrayAlloca(pointer);
+        return LLVM.LLVMIsAGlobalVariable(pointer) != null && variableId(pointer) != -1;
+    }
+
+    private void transfer(DataFacts facts, int id) {
+        var inst = allInstructions.get(id);
 
         var opcode = LLVM.LLVMGetInstructionOpcode(inst);
         switch (opcode) {
             case LLVM.LLVMAlloca:
-                newOut.put(inst, Ref.REF_UNDEF);
+                facts.put(id, Ref.REF_UNDEF);
                 break;
             case LLVM.LLVMUnreachable:
             case LLVM.LLVMRet:
             case LLVM.LLVMBr:
                 break;
             case LLVM.LLVMLoad:
-                newOut.put(inst, operandValue(inst, in, 0).deref());
+                if (isCell(LLVM.LLVMGetOperand(inst, 0))) facts.put(id, operandValue(inst, facts, 0).deref());
+                else facts.put(id, NonConstant.INSTANCE);
                 break;
             case LLVM.LLVMZExt:
-                newOut.put(inst, operandValue(inst, in, 0));
+            case LLVM.LLVMSExt:
+                facts.put(id, operandValue(inst, facts, 0));
+                break;
+            case LLVM.LLVMTrunc:
+            case LLVM.LLVMGetElementPtr:
+            case LLVM.LLVMPHI:
+                facts.put(id, NonConstant.INSTANCE);
                 break;
             case LLVM.LLVMStore:
-                newOut.put(LLVM.LLVMGetOperand(inst, 1), new Ref(operandValue(inst, in, 0)));
+                var pointer = LLVM.LLVMGetOperand(inst, 1);
+                if (isCell(pointer)) facts.put(variableId(pointer), new Ref(operandValue(inst, facts, 0)));
                 break;
             case LLVM.LLVMAdd:
             case LLVM.LLVMSub:
             case LLVM.LLVMMul:
             case LLVM.LLVMSDiv:
             case LLVM.LLVMSRem:
-                newOut.put(inst, operandValue(inst, in, 0).binaryOp(operandValue(inst, in, 1), BINARY_OPS.get(opcode)));
+                facts.put(id, operandValue(inst, facts, 0).binaryOp(operandValue(inst, facts, 1), BINARY_OPS.get(opcode)));
                 break;
             case LLVM.LLVMICmp:
-                newOut.put(inst, operandValue(inst, in, 0).binaryOp(operandValue(inst, in, 1),
+                facts.put(id, operandValue(inst, facts, 0).binaryOp(operandValue(inst, facts, 1),
                         BINARY_OPS.get(LLVM.LLVMGetICmpPredicate(inst))));
                 break;
+            case LLVM.LLVMCall:
+                for (var global = globals.nextSetBit(0); global >= 0; global = globals.nextSetBit(global + 1))
+                    facts.put(global, Ref.REF_NON_CONSTANT);
+                facts.put(id, NonConstant.INSTANCE);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown opcode: " + opcode);
         }
-
-        return newOut;
     }
 
-    private boolean updateSuccessors(DataFacts in, LLVMValueRef inst) {
-        var newSucc = new HashSet<LLVMValueRef>();
-        if (LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMBr) {
-            if (LLVM.LLVMIsConditional(inst) != 0) {
-                var cond = valueToCPValue(LLVM.LLVMGetCondition(inst), in);
-                if (cond instanceof Constant) newSucc.add(LLVM.LLVMGetFirstInstruction(
-                        LLVM.LLVMGetSuccessor(inst, ((Constant) cond).value == 0 ? 1 : 0)));
-                else if (cond instanceof NonConstant) {
-                    newSucc.add(LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, 0)));
-                    newSucc.add(LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, 1)));
-                }
-            } else newSucc.add(LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, 0)));
-        } else {
-            var next = LLVM.LLVMGetNextInstruction(inst);
-            if (next != null) newSucc.add(next);
+    private boolean updateSuccessors(DataFacts facts, int bb) {
+        var succs = bbSuccessors[bb];
+        var newSucc = (1 << succs.length) - 1;
+        var exitInst = LLVM.LLVMGetBasicBlockTerminator(allBasicBlocks.get(bb));
+        if (exitInst != null && LLVM.LLVMGetInstructionOpcode(exitInst) == LLVM.LLVMBr &&
+            LLVM.LLVMIsConditional(exitInst) != 0) {
+            var cond = valueToCPValue(LLVM.LLVMGetCondition(exitInst), facts);
+            if (cond instanceof Constant) {
+                var target = allBasicBlocks.idOf(
+                        LLVM.LLVMGetSuccessor(exitInst, ((Constant) cond).value == 0 ? 1 : 0));
+                newSucc = 0;
+                for (int k = 0; k < succs.length; ++k)
+                    if (succs[k] == target) newSucc |= 1 << k;
+            } else if (!(cond instanceof NonConstant)) newSucc = 0;
         }
 
-        return newSucc.stream().map(next -> addInstFlow(inst, next)).reduce(Boolean::logicalOr).orElse(false);
+        var old = feasibleSuccessors[bb];
+        feasibleSuccessors[bb] |= newSucc;
+        return feasibleSuccessors[bb] != old;
     }
 
     private void solveCP() {
         prepare();
 
         while (!worklist.isEmpty()) {
-            var begin = worklist.iterator();
-            var inst = begin.next();
-            begin.remove();
-
-            var preds = instPredecessors.get(inst);
-            if (!preds.isEmpty()) {
-                var newIn = new DataFacts();
-                preds.forEach(pred -> newIn.meet(outs.get(pred)));
-                ins.put(inst, newIn);
+            var rank = worklist.nextSetBit(0);
+            worklist.clear(rank);
+            var bb = rpo[rank];
+
+            var newIn = rank == 0 ? entryFacts.clone() : null;
+            for (var pred : bbPredecessors[bb]) {
+                if (!isFeasible(pred, bb)) continue;
+                if (newIn == null) newIn = outs[pred].clone();
+                else newIn.meet(outs[pred]);
             }
-
-            var factsIn = ins.get(inst);
-            var newOut = transfer(factsIn, inst);
-            if (!updateSuccessors(factsIn, inst) && newOut.equals(outs.get(inst))) continue;
-            outs.put(inst, newOut);
-            worklist.addAll(instSuccessors.get(inst));
+            if (newIn == null) continue;
+            ins[bb] = newIn;
+
+            var newOut = newIn.clone();
+            for (int id = bbInstBegin[bb]; id < bbInstBegin[bb + 1]; ++id) transfer(newOut, id);
+            if (!updateSuccessors(newOut, bb) && newOut.equals(outs[bb])) continue;
+            outs[bb] = newOut;
+            for (var succ : bbSuccessors[bb])
+                if (isFeasible(bb, succ)) worklist.set(rpoRank[succ]);
         }
     }
 
     private boolean replaceConstant() {
         boolean flag = false;
-        for (var inst : allInstructions) {
-            var in = ins.get(inst);
-            var operandCnt = LLVM.LLVMGetNumOperands(inst);
-            for (var i = 0; i < operandCnt; ++i) {
-                var original = LLVM.LLVMGetOperand(inst, i);
-                if (LLVM.LLVMIsAConstantInt(original) != null) continue;
-                var value = operandValue(inst, in, i);
-                if (value instanceof Constant) {
-                    LLVM.LLVMSetOperand(inst, i,
-                            LLVM.LLVMConstInt(LLVM.LLVMTypeOf(original), ((Constant) value).value, 1));
-                    flag = true;
+        for (int bb = 0; bb < allBasicBlocks.size(); ++bb) {
+            if (ins[bb] == null) continue;
+            var facts = ins[bb].clone();
+            for (int id = bbInstBegin[bb]; id < bbInstBegin[bb + 1]; ++id) {
+                var inst = allInstructions.get(id);
+                var operandCnt = LLVM.LLVMGetNumOperands(inst);
+                for (var i = 0; i < operandCnt; ++i) {
+                    var original = LLVM.LLVMGetOperand(inst, i);
+                    if (LLVM.LLVMIsAConstantInt(original) != null) continue;
+                    var value = operandValue(inst, facts, i);
+                    if (value instanceof Constant) {
+                        LLVM.LLVMSetOperand(inst, i,
+                                LLVM.LLVMConstInt(LLVM.LLVMTypeOf(original), ((Constant) value).value, 1));
+                        flag = true;
+                    }
                 }
+                transfer(facts, id);
             }
         }
         return flag;
@@ -172,7 +260,8 @@ public class LLVMCPPass extends LLVMPass {
 
     private boolean foldConstBr() {
         boolean flag = false;
-        for (var bb : allBasicBlocks) {
+        for (int id = 0; id < allBasicBlocks.size(); ++id) {
+            var bb = allBasicBlocks.get(id);
             var exitInst = LLVM.LLVMGetBasicBlockTerminator(bb);
             if (exitInst != null && LLVM.LLVMGetInstructionOpcode(exitInst) == LLVM.LLVMBr &&
                 LLVM.LLVMIsConditional(exitInst) != 0) {
@@ -192,35 +281,47 @@ public class LLVMCPPass extends LLVMPass {
     }
 
     @Override
-    public boolean run() {
+    public Set<LLVMAnalysisManager.Analysis> preservedAnalyses() {
+        if (branchFolded) return EnumSet.noneOf(LLVMAnalysisManager.Analysis.class);
+        return EnumSet.allOf(LLVMAnalysisManager.Analysis.class);
+    }
+
+    @Override
+    public void analyze() {
         solveCP();
+    }
+
+    @Override
+    public boolean transform() {
         boolean flag = replaceConstant();
-        flag |= foldConstBr();
-        return flag;
+        branchFolded = foldConstBr();
+        return flag | branchFolded;
     }
 
     private static class DataFacts implements Cloneable {
-        private HashMap<LLVMValueRef, CPValue> facts = new HashMap<>();
+        private PersistentIntMap<CPValue> facts;
+
+        public DataFacts(int size) {
+            facts = PersistentIntMap.empty(size);
+        }
 
-        public void put(LLVMValueRef var, CPValue value) {
-            facts.put(var, value);
+        public void put(int var, CPValue value) {
+            facts = facts.put(var, value);
         }
 
-        public CPValue get(LLVMValueRef var) {
-            return facts.getOrDefault(var, Undef.INSTANCE);
+        public CPValue get(int var) {
+            var value = facts.get(var);
+            return value == null ? Undef.INSTANCE : value;
         }
 
         public void meet(DataFacts other) {
-            other.facts.forEach((key, value) -> facts.merge(key, value, CPValue::meet));
+            facts = facts.merge(other.facts, CPValue::meet);
         }
 
         @Override
         public DataFacts clone() {
             try {
-                DataFacts clone = (DataFacts) super.clone();
-                //noinspection unchecked
-                clone.facts = (HashMap<LLVMValueRef, CPValue>) facts.clone();
-                return clone;
+                return (DataFacts) super.clone();
             } catch (CloneNotSupportedException e) {
                 throw new AssertionError();
             }
@@ -249,6 +350,7 @@ public class LLVMCPPass extends LLVMPass {
 
     private static class Ref extends CPValue {
         public static final Ref REF_UNDEF = new Ref(Undef.INSTANCE);
+        public static final Ref REF_NON_CONSTANT = new Ref(NonConstant.INSTANCE);
 
         public final CPValue referenced;
 
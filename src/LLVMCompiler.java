@@ -6,201 +6,779 @@ import org.llvm4j.llvm4j.Module;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.util.*;
 
 public class LLVMCompiler {
-    private static final Register RETURN_REGISTER = new Register(10);
-    private static final Map<Integer, String> ARITHMETIC_INSTRUCTIONS = Map.of(LLVM.LLVMSub, "sub", LLVM.LLVMMul, "mul",
-            LLVM.LLVMAdd, "add", LLVM.LLVMSDiv, "div", LLVM.LLVMSRem, "rem");
-    private static final Map<Integer, String> COMPARE_PREDICATES = Map.of(LLVM.LLVMIntEQ, "beq", LLVM.LLVMIntNE, "bne",
-            LLVM.LLVMIntSLE, "ble", LLVM.LLVMIntSLT, "blt", LLVM.LLVMIntSGE, "bge", LLVM.LLVMIntSGT, "bgt");
+    private static final Register ZERO_REGISTER = new Register(RISCVOperand.ZERO);
+    private static final Register RETURN_REGISTER = new Register(RISCVOperand.A0);
+    private static final Register SP_REGISTER = new Register(RISCVOperand.SP);
+    private static final int ARGUMENT_REGISTERS = 8;
+    private static final int ZERO_FILL_WORDS = 16;
+    private static final int ZERO_FILL_UNROLL = 4;
+    private static final Map<Integer, RISCVOpcode> ARITHMETIC_INSTRUCTIONS = Map.ofEntries(
+            Map.entry(LLVM.LLVMSub, RISCVOpcode.SUB), Map.entry(LLVM.LLVMMul, RISCVOpcode.MUL),
+            Map.entry(LLVM.LLVMAdd, RISCVOpcode.ADD), Map.entry(LLVM.LLVMSDiv, RISCVOpcode.DIV),
+            Map.entry(LLVM.LLVMSRem, RISCVOpcode.REM), Map.entry(LLVM.LLVMAnd, RISCVOpcode.AND),
+            Map.entry(LLVM.LLVMOr, RISCVOpcode.OR), Map.entry(LLVM.LLVMXor, RISCVOpcode.XOR),
+            Map.entry(LLVM.LLVMShl, RISCVOpcode.SLL), Map.entry(LLVM.LLVMLShr, RISCVOpcode.SRL),
+            Map.entry(LLVM.LLVMAShr, RISCVOpcode.SRA));
+    private static final Map<Integer, RISCVOpcode> IMMEDIATE_INSTRUCTIONS = Map.of(LLVM.LLVMAdd, RISCVOpcode.ADDI,
+            LLVM.LLVMAnd, RISCVOpcode.ANDI, LLVM.LLVMOr, RISCVOpcode.ORI, LLVM.LLVMXor, RISCVOpcode.XORI,
+            LLVM.LLVMShl, RISCVOpcode.SLLI, LLVM.LLVMLShr, RISCVOpcode.SRLI, LLVM.LLVMAShr, RISCVOpcode.SRAI);
+    private static final Map<Integer, Integer> SWAPPED_PREDICATES = Map.of(LLVM.LLVMIntEQ, LLVM.LLVMIntEQ,
+            LLVM.LLVMIntNE, LLVM.LLVMIntNE, LLVM.LLVMIntSLE, LLVM.LLVMIntSGE, LLVM.LLVMIntSLT, LLVM.LLVMIntSGT,
+            LLVM.LLVMIntSGE, LLVM.LLVMIntSLE, LLVM.LLVMIntSGT, LLVM.LLVMIntSLT, LLVM.LLVMIntULE, LLVM.LLVMIntUGE,
+            LLVM.LLVMIntULT, LLVM.LLVMIntUGT, LLVM.LLVMIntUGE, LLVM.LLVMIntULE, LLVM.LLVMIntUGT, LLVM.LLVMIntULT);
+    private static final Set<Integer> COMMUTATIVE_INSTRUCTIONS = Set.of(LLVM.LLVMAdd, LLVM.LLVMMul, LLVM.LLVMAnd,
+            LLVM.LLVMOr, LLVM.LLVMXor);
+    private static final Map<Integer, RISCVOpcode> BRANCH_PREDICATES = Map.of(LLVM.LLVMIntEQ, RISCVOpcode.BEQ,
+            LLVM.LLVMIntNE, RISCVOpcode.BNE, LLVM.LLVMIntSLE, RISCVOpcode.BLE, LLVM.LLVMIntSLT, RISCVOpcode.BLT,
+            LLVM.LLVMIntSGE, RISCVOpcode.BGE, LLVM.LLVMIntSGT, RISCVOpcode.BGT, LLVM.LLVMIntULE, RISCVOpcode.BLEU,
+            LLVM.LLVMIntULT, RISCVOpcode.BLTU, LLVM.LLVMIntUGE, RISCVOpcode.BGEU, LLVM.LLVMIntUGT, RISCVOpcode.BGTU);
+    private static final Map<Integer, Integer> INVERSE_PREDICATES = Map.of(LLVM.LLVMIntEQ, LLVM.LLVMIntNE,
+            LLVM.LLVMIntNE, LLVM.LLVMIntEQ, LLVM.LLVMIntSLE, LLVM.LLVMIntSGT, LLVM.LLVMIntSLT, LLVM.LLVMIntSGE,
+            LLVM.LLVMIntSGE, LLVM.LLVMIntSLT, LLVM.LLVMIntSGT, LLVM.LLVMIntSLE, LLVM.LLVMIntULE, LLVM.LLVMIntUGT,
+            LLVM.LLVMIntULT, LLVM.LLVMIntUGE, LLVM.LLVMIntUGE, LLVM.LLVMIntULT, LLVM.LLVMIntUGT, LLVM.LLVMIntULE);
 
     private final Module module;
     private final LLVMTypeRef VOID_TYPE;
     private final File outputFile;
+    private final LLVMAnalysisManager analysisManager;
 
     private final HashMap<String, Global> globals = new HashMap<>();
+    private final LinkedHashMap<String, int[]> frames = new LinkedHashMap<>();
+    private final RegisterAllocation registerAllocation;
+    private final RISCVStrengthReduction strengthReduction;
+    private final RISCVPeephole peephole = new RISCVPeephole();
+    private final RISCVScheduler scheduler;
+
+    public enum RegisterAllocation {
+        LINEAR_SCAN, GRAPH_COLORING
+    }
 
     public LLVMCompiler(Module module, File outputFile) {
+        this(module, outputFile, RegisterAllocation.LINEAR_SCAN);
+    }
+
+    public LLVMCompiler(Module module, File outputFile, RegisterAllocation registerAllocation) {
+        this(module, outputFile, registerAllocation, RISCVTargetProfile.GENERIC);
+    }
+
+    public LLVMCompiler(Module module, File outputFile, RegisterAllocation registerAllocation,
+            RISCVTargetProfile targetProfile) {
         this.module = module;
+        this.registerAllocation = registerAllocation;
+        this.strengthReduction = new RISCVStrengthReduction(targetProfile);
+        this.scheduler = new RISCVScheduler(targetProfile);
+        this.analysisManager = new LLVMAnalysisManager(module);
         this.VOID_TYPE = module.getContext().getVoidType().getRef();
         this.outputFile = outputFile;
     }
 
     public void compile() throws IOException {
         var ref = module.getRef();
-        StringBuilder result = new StringBuilder();
-        for (var global = LLVM.LLVMGetFirstGlobal(ref); global != null; global = LLVM.LLVMGetNextGlobal(global))
-            result.append(compileGlobal(global));
-        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
-            result.append(compileFunction(func));
-        Files.write(outputFile.toPath(), result.toString().getBytes());
+        try (var writer = Files.newBufferedWriter(outputFile.toPath())) {
+            for (var global = LLVM.LLVMGetFirstGlobal(ref); global != null; global = LLVM.LLVMGetNextGlobal(global))
+                writer.write(printGlobal(LLVM.LLVMGetValueName(global).getString(), compileGlobal(global)));
+            var printer = new RISCVPrinter(writer);
+            for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
+                if (LLVM.LLVMCountBasicBlocks(func) != 0) printer.print(compileFunction(func));
+        }
     }
 
-    private String compileGlobal(LLVMValueRef global) {
-        var initializer = LLVM.LLVMGetInitializer(global);
-        int value = 0;
-        if (!initializer.isNull()) {
-            var constant = LLVM.LLVMIsAConstantInt(initializer);
-            if (constant != null) value = Math.toIntExact(LLVM.LLVMConstIntGetSExtValue(constant));
+    private RISCVObject assemble(Appendable assembly) throws IOException {
+        var ref = module.getRef();
+        var encoder = new RISCVEncoder();
+        for (var global = LLVM.LLVMGetFirstGlobal(ref); global != null; global = LLVM.LLVMGetNextGlobal(global)) {
+            var name = LLVM.LLVMGetValueName(global).getString();
+            var words = compileGlobal(global);
+            encoder.data(name, words);
+            if (assembly != null) assembly.append(printGlobal(name, words));
         }
-        var name = LLVM.LLVMGetValueName(global).getString();
-        globals.put(name, new Global(name));
-        return String.format(".data\n%s:\n.word %d\n", name, value);
+        var printer = assembly == null ? null : new RISCVPrinter(assembly);
+        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func)) {
+            if (LLVM.LLVMCountBasicBlocks(func) == 0) continue;
+            var machineFunction = compileFunction(func);
+            encoder.encode(machineFunction);
+            if (printer != null) printer.print(machineFunction);
+        }
+        return encoder.object();
     }
 
-    private String compileFunction(LLVMValueRef function) {
-        var funcName = LLVM.LLVMGetValueName(function).getString();
-        StringBuilder result = new StringBuilder();
-        var allocator = new Allocator();
-        for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
-                block = LLVM.LLVMGetNextBasicBlock(block))
-            result.append(compileBasicBlock(block, allocator));
-        var stackSize = allocator.stackSize();
-        result.insert(0, String.format(".text\n.globl %s\n%s:\naddi sp, sp, -%d\n", funcName, funcName, stackSize));
-        result.append(String.format("FuncEnd:\naddi sp, sp, %d\nli a7, 93\necall", stackSize));
+    public void compileObject() throws IOException {
+        assemble(null).write(outputFile.toPath());
+    }
+
+    public int verifyObject(PrintStream out) throws IOException {
+        var assembly = new StringBuilder();
+        assemble(assembly).write(outputFile.toPath());
+        return RISCVDisassembler.compare(RISCVDisassembler.canonicalize(assembly.toString()),
+                RISCVDisassembler.disassemble(outputFile.toPath()), out);
+    }
 
+    public int simulate(RISCVSimulator simulator, InputStream in, OutputStream out) throws IOException {
+        return simulator.run(assemble(null), in, out);
+    }
+
+    public void reportPeephole(PrintStream out) {
+        peephole.report(out);
+    }
+
+    public void reportFrames(PrintStream out) {
+        for (var entry : frames.entrySet())
+            out.printf("frame %s: %d bytes, %d spill slots\n", entry.getKey(), entry.getValue()[0],
+                    entry.getValue()[1]);
+    }
+
+    private List<Integer> compileGlobal(LLVMValueRef global) {
+        var initializer = LLVM.LLVMGetInitializer(global);
+        var words = new ArrayList<Integer>();
+        flatten(initializer.isNull() ? null : initializer, LLVM.LLVMGlobalGetValueType(global), words);
+        var name = LLVM.LLVMGetValueName(global).getString();
+        globals.put(name, new Global(name, 0));
+        return words;
+    }
+
+    private static String printGlobal(String name, List<Integer> words) {
+        var result = new StringBuilder(".data\n").append(name).append(":\n");
+        for (int i = 0; i < words.size(); ) {
+            int j = i;
+            while (j < words.size() && words.get(j) == 0) ++j;
+            if (j - i > 1) {
+                result.append(".zero ").append((j - i) * 4).append('\n');
+                i = j;
+            } else result.append(".word ").append(words.get(i++)).append('\n');
+        }
         return result.toString();
     }
 
-    private int findLastUse(LLVMBasicBlockRef basicBlock, LLVMValueRef value) {
-        int result = -1;
-        int index = 0;
-        for (var inst = LLVM.LLVMGetFirstInstruction(basicBlock); inst != null;
-                inst = LLVM.LLVMGetNextInstruction(inst), ++index) {
-            var num = LLVM.LLVMGetNumOperands(inst);
-            for (int i = 0; i < num; ++i)
-                if (value.equals(LLVM.LLVMGetOperand(inst, i))) result = index;
+    private static int sizeOf(LLVMTypeRef type) {
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMArrayTypeKind) return 4;
+        return LLVM.LLVMGetArrayLength(type) * sizeOf(LLVM.LLVMGetElementType(type));
+    }
+
+    private static void flatten(LLVMValueRef constant, LLVMTypeRef type, List<Integer> words) {
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMArrayTypeKind) {
+            var value = constant == null ? null : LLVM.LLVMIsAConstantInt(constant);
+            words.add(value == null ? 0 : Math.toIntExact(LLVM.LLVMConstIntGetSExtValue(value)));
+            return;
+        }
+        var length = LLVM.LLVMGetArrayLength(type);
+        var elementType = LLVM.LLVMGetElementType(type);
+        for (int i = 0; i < length; ++i) {
+            LLVMValueRef element = null;
+            if (constant != null && LLVM.LLVMIsAConstantDataArray(constant) != null)
+                element = LLVM.LLVMGetElementAsConstant(constant, i);
+            else if (constant != null && LLVM.LLVMIsAConstantArray(constant) != null)
+                element = LLVM.LLVMGetOperand(constant, i);
+            flatten(element, elementType, words);
         }
-        return result;
     }
 
-    private int findLastUseInParent(LLVMValueRef inst) {
-        return findLastUse(LLVM.LLVMGetInstructionParent(inst), inst);
+    private RISCVMachineFunction compileFunction(LLVMValueRef function) {
+        var funcName = LLVM.LLVMGetValueName(function).getString();
+        var machineFunction = new RISCVMachineFunction(funcName);
+        var cfg = analysisManager.getCFG(function);
+        var domTree = analysisManager.getDomTree(function);
+        var liveIntervals = new LLVMLiveIntervals(cfg, analysisManager.getInstFlow(function));
+        var isMain = funcName.equals("main");
+        var allocator = new Allocator(machineFunction, liveIntervals, registerAllocation, domTree.loopDepth, !isMain);
+        var frameSize = allocator.frameSize();
+        frames.put(funcName, new int[]{frameSize, allocator.slotCount()});
+
+        var prologue = machineFunction.addBlock(funcName);
+        adjustStack(-frameSize, prologue, allocator);
+        for (var register : allocator.calleeSaved())
+            allocator.saveSlot(register).store(new Register(register), prologue, allocator);
+        allocator.emitParameterMoves(prologue);
+        var layout = RISCVBlockLayout.compute(cfg, domTree,
+                cfg.blocks.idOf(LLVM.LLVMGetEntryBasicBlock(function)));
+        var stubs = new ArrayList<RISCVMachineBlock>();
+        for (int i = 0; i < layout.length; ++i) {
+            var next = i + 1 < layout.length ? cfg.blocks.get(layout[i + 1]) : null;
+            compileBasicBlock(cfg.blocks.get(layout[i]), next, machineFunction, stubs, allocator);
+        }
+        machineFunction.blocks.addAll(stubs);
+
+        var epilogue = machineFunction.addBlock(endLabel(funcName));
+        for (var register : allocator.calleeSaved())
+            allocator.saveSlot(register).loadInto(new Register(register), epilogue, allocator);
+        adjustStack(frameSize, epilogue, allocator);
+        if (isMain) {
+            epilogue.add(RISCVOpcode.LI, RISCVOperand.register(RISCVOperand.A7), imm(93));
+            epilogue.add(RISCVOpcode.ECALL);
+        } else epilogue.add(RISCVOpcode.RET);
+
+        peephole.run(machineFunction);
+        scheduler.run(machineFunction);
+        return machineFunction;
     }
 
-    private boolean isCrossBlock(LLVMValueRef value) {
-        var basicBlock = LLVM.LLVMGetInstructionParent(value);
-        var function = LLVM.LLVMGetBasicBlockParent(basicBlock);
-        for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
-                block = LLVM.LLVMGetNextBasicBlock(block)) {
-            if (block.equals(basicBlock)) continue;
-            if (findLastUse(block, value) != -1) return true;
+    private static void adjustStack(int amount, RISCVMachineBlock block, Allocator allocator) {
+        var sp = SP_REGISTER.operand();
+        if (amount == 0) return;
+        if (fitsImmediate(amount)) {
+            block.add(RISCVOpcode.ADDI, sp, sp, imm(amount));
+            return;
         }
-        return false;
+        var tmp = allocator.allocateTemporary();
+        block.add(RISCVOpcode.LI, tmp.operand(), imm(amount));
+        block.add(RISCVOpcode.ADD, sp, sp, tmp.operand());
+        allocator.freeTemporaries();
+    }
+
+    private static String blockLabel(LLVMBasicBlockRef basicBlock) {
+        return LLVM.LLVMGetValueName(LLVM.LLVMGetBasicBlockParent(basicBlock)).getString() + "_"
+                + LLVM.LLVMGetBasicBlockName(basicBlock).getString();
     }
 
-    private String compileBasicBlock(LLVMBasicBlockRef basicBlock, Allocator allocator) {
-        StringBuilder result = new StringBuilder();
-        result.append(LLVM.LLVMGetBasicBlockName(basicBlock).getString());
-        result.append(":\n");
-        int index = 0;
+    private static String endLabel(String funcName) {
+        return funcName + "_End";
+    }
+
+    private void compileBasicBlock(LLVMBasicBlockRef basicBlock, LLVMBasicBlockRef next,
+            RISCVMachineFunction function, List<RISCVMachineBlock> stubs, Allocator allocator) {
+        var block = function.addBlock(blockLabel(basicBlock));
         for (var inst = LLVM.LLVMGetFirstInstruction(basicBlock); inst != null;
-                inst = LLVM.LLVMGetNextInstruction(inst), ++index)
-            compileInstruction(index, inst, result, allocator);
-        return result.toString();
+                inst = LLVM.LLVMGetNextInstruction(inst)) {
+            allocator.setPosition(inst);
+            allocator.emitMoves(allocator.splitMoves(), block);
+            if (LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMBr)
+                compileBranch(inst, next, function, block, stubs, allocator);
+            else compileInstruction(inst, function, block, allocator);
+            block = function.blocks.get(function.blocks.size() - 1);
+        }
     }
 
     private DataLocation valueToDataLocation(LLVMValueRef value, Allocator allocator) {
         var constant = LLVM.LLVMIsAConstantInt(value);
         if (constant != null) return new Constant(Math.toIntExact(LLVM.LLVMConstIntGetSExtValue(constant)));
-        var name = LLVM.LLVMGetValueName(value).getString();
-        if (LLVM.LLVMIsAGlobalVariable(value) != null) return globals.get(name);
-        return allocator.getLocation(name);
+        if (LLVM.LLVMIsAGlobalVariable(value) != null) return globals.get(LLVM.LLVMGetValueName(value).getString());
+        if (isConstantAddress(value)) return constantAddress(value);
+        if (LLVMLiveIntervals.isArrayAlloca(value)) return new StackAddress(allocator.arrayOffset(value));
+        return allocator.getLocation(value);
+    }
+
+    private static boolean isConstantAddress(LLVMValueRef value) {
+        return LLVM.LLVMIsAConstantExpr(value) != null && LLVM.LLVMGetConstOpcode(value) == LLVM.LLVMGetElementPtr;
+    }
+
+    private Global constantAddress(LLVMValueRef value) {
+        var base = LLVM.LLVMGetOperand(value, 0);
+        var global = LLVM.LLVMIsAGlobalVariable(base) != null
+                ? globals.get(LLVM.LLVMGetValueName(base).getString()) : constantAddress(base);
+        return new Global(global.name, global.offset + constantOffset(value));
+    }
+
+    private static int constantOffset(LLVMValueRef gep) {
+        var type = LLVM.LLVMGetElementType(LLVM.LLVMTypeOf(LLVM.LLVMGetOperand(gep, 0)));
+        long offset = 0;
+        var count = LLVM.LLVMGetNumOperands(gep);
+        for (int i = 1; i < count; ++i) {
+            if (i > 1) type = LLVM.LLVMGetElementType(type);
+            offset += LLVM.LLVMConstIntGetSExtValue(LLVM.LLVMGetOperand(gep, i)) * sizeOf(type);
+        }
+        return Math.toIntExact(offset);
+    }
+
+    private Address address(LLVMValueRef pointer, RISCVMachineBlock block, Allocator allocator) {
+        if (LLVMLiveIntervals.isFoldedAddress(pointer)) return elementAddress(pointer, block, allocator);
+        var location = valueToDataLocation(pointer, allocator);
+        if (location instanceof StackAddress && fitsImmediate(((StackAddress) location).offset))
+            return new Address(SP_REGISTER, ((StackAddress) location).offset);
+        if (location instanceof Global && fitsImmediate(((Global) location).offset)) {
+            var global = (Global) location;
+            return new Address(new Global(global.name, 0).load(block, allocator), global.offset);
+        }
+        return new Address(location.load(block, allocator), 0);
+    }
+
+    private Address elementAddress(LLVMValueRef gep, RISCVMachineBlock block, Allocator allocator) {
+        var pointer = LLVM.LLVMGetOperand(gep, 0);
+        var base = address(pointer, block, allocator);
+        var register = base.base;
+        long offset = base.offset;
+        var type = LLVM.LLVMGetElementType(LLVM.LLVMTypeOf(pointer));
+        var count = LLVM.LLVMGetNumOperands(gep);
+        for (int i = 1; i < count; ++i) {
+            if (i > 1) type = LLVM.LLVMGetElementType(type);
+            var index = LLVM.LLVMGetOperand(gep, i);
+            var constant = LLVM.LLVMIsAConstantInt(index);
+            if (constant != null) {
+                offset += LLVM.LLVMConstIntGetSExtValue(constant) * sizeOf(type);
+                continue;
+            }
+            var value = valueToDataLocation(index, allocator).load(block, allocator);
+            var scaled = allocator.allocateTemporary();
+            strengthReduction.multiply(block, scaled.register, value.register, scaled.register, sizeOf(type));
+            allocator.releaseTemporary(value);
+            block.add(RISCVOpcode.ADD, scaled.operand(), register.operand(), scaled.operand());
+            allocator.releaseTemporary(register);
+            register = scaled;
+        }
+        if (fitsImmediate(offset)) return new Address(register, (int) offset);
+        var tmp = allocator.allocateTemporary();
+        block.add(RISCVOpcode.LI, tmp.operand(), imm(offset));
+        block.add(RISCVOpcode.ADD, tmp.operand(), register.operand(), tmp.operand());
+        allocator.releaseTemporary(register);
+        return new Address(tmp, 0);
+    }
+
+    private void loadInst(LLVMValueRef inst, DataLocation dest, RISCVMachineBlock block, Allocator allocator) {
+        var address = address(LLVM.LLVMGetOperand(inst, 0), block, allocator);
+        var tmp = dest instanceof Register ? (Register) dest : allocator.allocateTemporary();
+        block.add(RISCVOpcode.LW, tmp.operand(), imm(address.offset), address.base.operand());
+        if (!(dest instanceof Register)) dest.store(tmp, block, allocator);
+        allocator.freeTemporaries();
+    }
+
+    private void storeInst(LLVMValueRef inst, RISCVMachineFunction function, RISCVMachineBlock block,
+            Allocator allocator) {
+        var value = LLVM.LLVMGetOperand(inst, 0);
+        var address = address(LLVM.LLVMGetOperand(inst, 1), block, allocator);
+        var type = LLVM.LLVMTypeOf(value);
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMArrayTypeKind) {
+            var source = valueToDataLocation(value, allocator).load(block, allocator);
+            block.add(RISCVOpcode.SW, source.operand(), imm(address.offset), address.base.operand());
+            allocator.freeTemporaries();
+            return;
+        }
+
+        var words = new ArrayList<Integer>();
+        flatten(value, type, words);
+        var base = allocator.allocateTemporary();
+        new Register(base.register).store(address.base, block, allocator);
+        allocator.releaseTemporary(address.base);
+        var bias = -address.offset;
+        for (int i = 0; i < words.size(); ++i) {
+            int run = 0;
+            while (i + run < words.size() && words.get(i + run) == 0) ++run;
+            if (run >= ZERO_FILL_WORDS) {
+                var loopWords = run - run % ZERO_FILL_UNROLL;
+                var end = allocator.allocateTemporary();
+                addOffset(base, base, 4 * i - bias, end, block);
+                addOffset(end, base, 4 * loopWords, end, block);
+                var loop = function.addBlock(block.label + "_Fill" + function.blocks.size());
+                for (int k = 0; k < ZERO_FILL_UNROLL; ++k)
+                    loop.add(RISCVOpcode.SW, RISCVOperand.register(RISCVOperand.ZERO), imm(4 * k), base.operand());
+                loop.add(RISCVOpcode.ADDI, base.operand(), base.operand(), imm(4 * ZERO_FILL_UNROLL));
+                loop.add(RISCVOpcode.BLTU, base.operand(), end.operand(), function.symbol(loop.label));
+                block = function.addBlock(loop.label + "_Exit");
+                allocator.releaseTemporary(end);
+                i += loopWords - 1;
+                bias = 4 * (i + 1);
+                continue;
+            }
+            if (4 * i - bias >= 2048) {
+                block.add(RISCVOpcode.ADDI, base.operand(), base.operand(), imm(2044));
+                bias += 2044;
+            }
+            var word = new Constant(words.get(i)).load(block, allocator);
+            block.add(RISCVOpcode.SW, word.operand(), imm(4 * i - bias), base.operand());
+            allocator.releaseTemporary(word);
+        }
+        allocator.freeTemporaries();
     }
 
-    private void binaryInst(String instType, DataLocation dest, DataLocation[] operands, StringBuilder builder,
+    private static void addOffset(Register target, Register source, int offset, Register scratch,
+            RISCVMachineBlock block) {
+        if (fitsImmediate(offset)) {
+            if (offset != 0 || target.register != source.register)
+                block.add(RISCVOpcode.ADDI, target.operand(), source.operand(), imm(offset));
+            return;
+        }
+        block.add(RISCVOpcode.LI, scratch.operand(), imm(offset));
+        block.add(RISCVOpcode.ADD, target.operand(), source.operand(), scratch.operand());
+    }
+
+    private static boolean fitsImmediate(long value) {
+        return value >= -2048 && value < 2048;
+    }
+
+    private static long imm(long value) {
+        return RISCVOperand.immediate(Math.toIntExact(value));
+    }
+
+    private void binaryInst(int opcode, DataLocation dest, DataLocation[] operands, RISCVMachineBlock block,
             Allocator allocator) {
-        var a = operands[0].load(builder, allocator);
-        var b = operands[1].load(builder, allocator);
+        var lhs = operands[0];
+        var rhs = operands[1];
+        if (lhs instanceof Constant && !(rhs instanceof Constant) && COMMUTATIVE_INSTRUCTIONS.contains(opcode)) {
+            lhs = operands[1];
+            rhs = operands[0];
+        }
+
+        RISCVOpcode instType = null;
+        long immediate = 0;
+        if (rhs instanceof Constant) {
+            immediate = ((Constant) rhs).value();
+            var immediateOpcode = opcode;
+            if (opcode == LLVM.LLVMSub) {
+                immediateOpcode = LLVM.LLVMAdd;
+                immediate = -immediate;
+            }
+            var shift = opcode == LLVM.LLVMShl || opcode == LLVM.LLVMLShr || opcode == LLVM.LLVMAShr;
+            if (shift ? immediate >= 0 && immediate < 32 : fitsImmediate(immediate))
+                instType = IMMEDIATE_INSTRUCTIONS.get(immediateOpcode);
+        }
+
+        var a = lhs.load(block, allocator);
+        if (rhs instanceof Constant
+                && (opcode == LLVM.LLVMMul || opcode == LLVM.LLVMSDiv || opcode == LLVM.LLVMSRem)) {
+            constantArithmetic(opcode, dest, a, ((Constant) rhs).value(), block, allocator);
+            return;
+        }
+        if (instType != null) {
+            allocator.freeTemporaries();
+            var tmp = dest instanceof Register ? (Register) dest : allocator.allocateTemporary();
+            block.add(instType, tmp.operand(), a.operand(), imm(immediate));
+            if (!(dest instanceof Register)) dest.store(tmp, block, allocator);
+            allocator.freeTemporaries();
+            return;
+        }
+
+        var b = rhs.load(block, allocator);
         allocator.freeTemporaries();
         var tmp = dest instanceof Register ? (Register) dest : allocator.allocateTemporary();
-        builder.append(String.format("%s %s, %s, %s\n", instType, tmp.name(), a.name(), b.name()));
-        if (!(dest instanceof Register)) dest.store(tmp, builder, allocator);
+        block.add(ARITHMETIC_INSTRUCTIONS.get(opcode), tmp.operand(), a.operand(), b.operand());
+        if (!(dest instanceof Register)) dest.store(tmp, block, allocator);
         allocator.freeTemporaries();
     }
 
-    private void compareInst(LLVMValueRef inst, DataLocation dest, DataLocation[] operands, StringBuilder builder,
+    private void constantArithmetic(int opcode, DataLocation dest, Register a, int value, RISCVMachineBlock block,
+            Allocator allocator) {
+        var t = allocator.allocateTemporary();
+        var u = allocator.allocateTemporary();
+        var result = dest instanceof Register ? (Register) dest : t;
+        switch (opcode) {
+            case LLVM.LLVMMul:
+                strengthReduction.multiply(block, result.register, a.register, u.register, value);
+                break;
+            case LLVM.LLVMSDiv:
+                strengthReduction.divide(block, result.register, a.register, t.register, u.register, value);
+                break;
+            case LLVM.LLVMSRem:
+                strengthReduction.remainder(block, result.register, a.register, t.register, u.register, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+        if (!(dest instanceof Register)) dest.store(result, block, allocator);
+        allocator.freeTemporaries();
+    }
+
+    private void compareInst(LLVMValueRef inst, DataLocation dest, DataLocation[] operands, RISCVMachineBlock block,
             Allocator allocator) {
         var predicate = LLVM.LLVMGetICmpPredicate(inst);
-        var a = operands[0].load(builder, allocator);
-        var b = operands[1].load(builder, allocator);
-        var name = LLVM.LLVMGetValueName(inst).getString();
-        var trueLabel = name + "_True";
-        var mergeLabel = name + "_Merge";
-        builder.append(
-                String.format("%s %s, %s, %s\n", COMPARE_PREDICATES.get(predicate), a.name(), b.name(), trueLabel));
+        var lhs = operands[0];
+        var rhs = operands[1];
+        if (lhs instanceof Constant && !(rhs instanceof Constant)) {
+            lhs = operands[1];
+            rhs = operands[0];
+            predicate = SWAPPED_PREDICATES.get(predicate);
+        }
+
+        var a = lhs.load(block, allocator);
+        if (rhs instanceof Constant) {
+            var tmp = dest instanceof Register ? (Register) dest : allocator.allocateTemporary();
+            if (compareImmediate(predicate, a, ((Constant) rhs).value(), tmp, block)) {
+                if (!(dest instanceof Register)) dest.store(tmp, block, allocator);
+                allocator.freeTemporaries();
+                return;
+            }
+        }
+
+        var b = rhs.load(block, allocator);
         allocator.freeTemporaries();
-        dest.store(new Constant(0).load(builder, allocator), builder, allocator);
+        var tmp = dest instanceof Register ? (Register) dest : allocator.allocateTemporary();
+        switch (predicate) {
+            case LLVM.LLVMIntEQ:
+            case LLVM.LLVMIntNE:
+                block.add(RISCVOpcode.XOR, tmp.operand(), a.operand(), b.operand());
+                block.add(predicate == LLVM.LLVMIntEQ ? RISCVOpcode.SEQZ : RISCVOpcode.SNEZ, tmp.operand(),
+                        tmp.operand());
+                break;
+            case LLVM.LLVMIntSLT:
+            case LLVM.LLVMIntULT:
+            case LLVM.LLVMIntSGE:
+            case LLVM.LLVMIntUGE:
+                block.add(isSigned(predicate) ? RISCVOpcode.SLT : RISCVOpcode.SLTU, tmp.operand(), a.operand(),
+                        b.operand());
+                break;
+            case LLVM.LLVMIntSGT:
+            case LLVM.LLVMIntUGT:
+            case LLVM.LLVMIntSLE:
+            case LLVM.LLVMIntULE:
+                block.add(isSigned(predicate) ? RISCVOpcode.SLT : RISCVOpcode.SLTU, tmp.operand(), b.operand(),
+                        a.operand());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown predicate: " + predicate);
+        }
+        if (predicate == LLVM.LLVMIntSGE || predicate == LLVM.LLVMIntUGE || predicate == LLVM.LLVMIntSLE
+                || predicate == LLVM.LLVMIntULE)
+            block.add(RISCVOpcode.XORI, tmp.operand(), tmp.operand(), imm(1));
+        if (!(dest instanceof Register)) dest.store(tmp, block, allocator);
         allocator.freeTemporaries();
-        builder.append(String.format("j %s\n", mergeLabel));
-        builder.append(String.format("%s:\n", trueLabel));
-        dest.store(new Constant(1).load(builder, allocator), builder, allocator);
+    }
+
+    private static boolean compareImmediate(int predicate, Register a, long value, Register tmp,
+            RISCVMachineBlock block) {
+        switch (predicate) {
+            case LLVM.LLVMIntEQ:
+            case LLVM.LLVMIntNE:
+                if (!fitsImmediate(value)) return false;
+                var source = a;
+                if (value != 0) {
+                    block.add(RISCVOpcode.XORI, tmp.operand(), a.operand(), imm(value));
+                    source = tmp;
+                }
+                block.add(predicate == LLVM.LLVMIntEQ ? RISCVOpcode.SEQZ : RISCVOpcode.SNEZ, tmp.operand(),
+                        source.operand());
+                return true;
+            case LLVM.LLVMIntSLT:
+            case LLVM.LLVMIntULT:
+            case LLVM.LLVMIntSGE:
+            case LLVM.LLVMIntUGE:
+                if (!fitsImmediate(value)) return false;
+                break;
+            case LLVM.LLVMIntSGT:
+            case LLVM.LLVMIntUGT:
+            case LLVM.LLVMIntSLE:
+            case LLVM.LLVMIntULE:
+                if (!fitsImmediate(value + 1) || !isSigned(predicate) && value == -1) return false;
+                ++value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown predicate: " + predicate);
+        }
+        block.add(isSigned(predicate) ? RISCVOpcode.SLTI : RISCVOpcode.SLTIU, tmp.operand(), a.operand(), imm(value));
+        if (predicate == LLVM.LLVMIntSGE || predicate == LLVM.LLVMIntUGE || predicate == LLVM.LLVMIntSGT
+                || predicate == LLVM.LLVMIntUGT)
+            block.add(RISCVOpcode.XORI, tmp.operand(), tmp.operand(), imm(1));
+        return true;
+    }
+
+    private static boolean isSigned(int predicate) {
+        return predicate == LLVM.LLVMIntSLT || predicate == LLVM.LLVMIntSLE || predicate == LLVM.LLVMIntSGT
+                || predicate == LLVM.LLVMIntSGE;
+    }
+
+    private void compareBranch(LLVMValueRef condition, boolean whenTrue, long label, RISCVMachineBlock block,
+            Allocator allocator) {
+        if (!LLVMLiveIntervals.isFusedCompare(condition)) {
+            var cond = valueToDataLocation(condition, allocator).load(block, allocator);
+            block.add(whenTrue ? RISCVOpcode.BNEZ : RISCVOpcode.BEQZ, cond.operand(), label);
+            allocator.freeTemporaries();
+            return;
+        }
+        var predicate = LLVM.LLVMGetICmpPredicate(condition);
+        if (!whenTrue) predicate = INVERSE_PREDICATES.get(predicate);
+        var a = valueToDataLocation(LLVM.LLVMGetOperand(condition, 0), allocator).load(block, allocator);
+        var b = valueToDataLocation(LLVM.LLVMGetOperand(condition, 1), allocator).load(block, allocator);
+        block.add(BRANCH_PREDICATES.get(predicate), a.operand(), b.operand(), label);
         allocator.freeTemporaries();
-        builder.append(String.format("%s:\nnop\n", mergeLabel));
     }
 
-    private void compileInstruction(int index, LLVMValueRef inst, StringBuilder builder, Allocator allocator) {
-        var name = LLVM.LLVMGetValueName(inst);
+    private void phiCopies(LLVMValueRef exitInst, RISCVMachineBlock block, Allocator allocator) {
+        var basicBlock = LLVM.LLVMGetInstructionParent(exitInst);
+        var countSucc = LLVM.LLVMGetNumSuccessors(exitInst);
+        for (int i = 0; i < countSucc; ++i) {
+            var succ = LLVM.LLVMGetSuccessor(exitInst, i);
+            if (i == 1 && succ.equals(LLVM.LLVMGetSuccessor(exitInst, 0))) break;
+            for (var phi = LLVM.LLVMGetFirstInstruction(succ); phi != null && LLVM.LLVMIsAPHINode(phi) != null;
+                    phi = LLVM.LLVMGetNextInstruction(phi)) {
+                var incomingCnt = LLVM.LLVMCountIncoming(phi);
+                for (int j = 0; j < incomingCnt; ++j) {
+                    if (!basicBlock.equals(LLVM.LLVMGetIncomingBlock(phi, j))) continue;
+                    var value = LLVM.LLVMGetIncomingValue(phi, j);
+                    if (LLVM.LLVMIsAUndefValue(value) != null) break;
+                    var shadow = allocator.getShadowLocation(phi);
+                    shadow.store(valueToDataLocation(value, allocator).load(block, allocator), block, allocator);
+                    allocator.freeTemporaries();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void branch(LLVMBasicBlockRef basicBlock, LLVMBasicBlockRef target, LLVMBasicBlockRef next,
+            RISCVMachineFunction function, RISCVMachineBlock block, Allocator allocator) {
+        allocator.emitMoves(allocator.edgeMoves(basicBlock, target), block);
+        if (!target.equals(next))
+            block.add(RISCVOpcode.J, function.symbol(blockLabel(target)));
+    }
+
+    private long branchLabel(LLVMBasicBlockRef basicBlock, LLVMBasicBlockRef target, RISCVMachineFunction function,
+            List<RISCVMachineBlock> stubs, Allocator allocator) {
+        if (allocator.edgeMoves(basicBlock, target).isEmpty()) return function.symbol(blockLabel(target));
+        var label = blockLabel(basicBlock) + "_To_" + LLVM.LLVMGetBasicBlockName(target).getString();
+        var stub = new RISCVMachineBlock(label);
+        stubs.add(stub);
+        branch(basicBlock, target, null, function, stub, allocator);
+        return function.symbol(label);
+    }
+
+    private void compileBranch(LLVMValueRef inst, LLVMBasicBlockRef next, RISCVMachineFunction function,
+            RISCVMachineBlock block, List<RISCVMachineBlock> stubs, Allocator allocator) {
+        phiCopies(inst, block, allocator);
+        var basicBlock = LLVM.LLVMGetInstructionParent(inst);
+        var trueTarget = LLVM.LLVMGetSuccessor(inst, 0);
+        if (LLVM.LLVMIsConditional(inst) == 0) {
+            branch(basicBlock, trueTarget, next, function, block, allocator);
+            return;
+        }
+
+        var falseTarget = LLVM.LLVMGetSuccessor(inst, 1);
+        var condition = LLVM.LLVMGetCondition(inst);
+        if (falseTarget.equals(next) && !trueTarget.equals(next)) {
+            compareBranch(condition, true, branchLabel(basicBlock, trueTarget, function, stubs, allocator), block,
+                    allocator);
+            branch(basicBlock, falseTarget, next, function, block, allocator);
+        } else {
+            compareBranch(condition, false, branchLabel(basicBlock, falseTarget, function, stubs, allocator), block,
+                    allocator);
+            branch(basicBlock, trueTarget, next, function, block, allocator);
+        }
+    }
+
+    private void callInst(LLVMValueRef inst, DataLocation dest, RISCVMachineFunction function,
+            RISCVMachineBlock block, Allocator allocator) {
+        var saved = allocator.savedAcross(inst);
+        for (var register = saved.nextSetBit(0); register >= 0; register = saved.nextSetBit(register + 1))
+            allocator.saveSlot(register).store(new Register(register), block, allocator);
+
+        var argCount = LLVM.LLVMGetNumArgOperands(inst);
+        for (int i = ARGUMENT_REGISTERS; i < argCount; ++i) {
+            new Stack((i - ARGUMENT_REGISTERS) * 4).store(
+                    valueToDataLocation(LLVM.LLVMGetOperand(inst, i), allocator).load(block, allocator), block,
+                    allocator);
+            allocator.freeTemporaries();
+        }
+        var registerArgs = Math.min(argCount, ARGUMENT_REGISTERS);
+        var moves = new ArrayList<int[]>();
+        for (int i = 0; i < registerArgs; ++i) {
+            var arg = LLVM.LLVMGetOperand(inst, i);
+            if (allocator.isVariable(arg)) moves.add(new int[]{allocator.locationOf(arg), RISCVOperand.A0 + i});
+        }
+        allocator.emitMoves(moves, block);
+        for (int i = 0; i < registerArgs; ++i) {
+            var arg = LLVM.LLVMGetOperand(inst, i);
+            if (allocator.isVariable(arg)) continue;
+            valueToDataLocation(arg, allocator).loadInto(new Register(RISCVOperand.A0 + i), block, allocator);
+            allocator.freeTemporaries();
+        }
+
+        block.add(RISCVOpcode.CALL, function.symbol(LLVM.LLVMGetValueName(LLVM.LLVMGetCalledValue(inst)).getString()));
+        if (dest != null) dest.store(RETURN_REGISTER, block, allocator);
+        for (var register = saved.nextSetBit(0); register >= 0; register = saved.nextSetBit(register + 1))
+            allocator.saveSlot(register).loadInto(new Register(register), block, allocator);
+        allocator.freeTemporaries();
+    }
+
+    private void compileInstruction(LLVMValueRef inst, RISCVMachineFunction function, RISCVMachineBlock block,
+            Allocator allocator) {
         var operands = new DataLocation[LLVM.LLVMGetNumOperands(inst)];
         for (int i = 0; i < operands.length; ++i)
             operands[i] = valueToDataLocation(LLVM.LLVMGetOperand(inst, i), allocator);
-        allocator.freeUntil(index);
-        DataLocation loc = null;
-        if (!VOID_TYPE.equals(LLVM.LLVMTypeOf(inst))) {
-            var live = isCrossBlock(inst) ? Integer.MAX_VALUE : findLastUseInParent(inst);
-            loc = allocator.allocate(name.getString(), live, builder);
-        }
-
+        var loc = VOID_TYPE.equals(LLVM.LLVMTypeOf(inst)) ? null : allocator.getLocation(inst);
         var opcode = LLVM.LLVMGetInstructionOpcode(inst);
+
         switch (opcode) {
             case LLVM.LLVMAlloca:
             case LLVM.LLVMUnreachable:
                 break;
             case LLVM.LLVMLoad:
+                if (!isScalarSlot(LLVM.LLVMGetOperand(inst, 0))) {
+                    loadInst(inst, Objects.requireNonNull(loc), block, allocator);
+                    break;
+                }
+                Objects.requireNonNull(loc).store(operands[0].load(block, allocator), block, allocator);
+                allocator.freeTemporaries();
+                break;
             case LLVM.LLVMZExt:
-                Objects.requireNonNull(loc).store(operands[0].load(builder, allocator), builder, allocator);
+                Objects.requireNonNull(loc).store(operands[0].load(block, allocator), block, allocator);
                 allocator.freeTemporaries();
                 break;
             case LLVM.LLVMStore:
-                operands[1].store(operands[0].load(builder, allocator), builder, allocator);
+                if (!isScalarSlot(LLVM.LLVMGetOperand(inst, 1))) {
+                    storeInst(inst, function, block, allocator);
+                    break;
+                }
+                operands[1].store(operands[0].load(block, allocator), block, allocator);
+                allocator.freeTemporaries();
+                break;
+            case LLVM.LLVMGetElementPtr: {
+                if (LLVMLiveIntervals.isFoldedAddress(inst) || allocator.isRematerialized(inst)) break;
+                var address = elementAddress(inst, block, allocator);
+                var tmp = loc instanceof Register ? (Register) loc : allocator.allocateTemporary();
+                if (address.offset == 0) tmp.store(address.base, block, allocator);
+                else block.add(RISCVOpcode.ADDI, tmp.operand(), address.base.operand(), imm(address.offset));
+                if (!(loc instanceof Register)) Objects.requireNonNull(loc).store(tmp, block, allocator);
                 allocator.freeTemporaries();
                 break;
+            }
             case LLVM.LLVMRet:
-                RETURN_REGISTER.store(operands[0].load(builder, allocator), builder, allocator);
+                if (operands.length != 0) operands[0].loadInto(RETURN_REGISTER, block, allocator);
                 allocator.freeTemporaries();
-                builder.append("j FuncEnd\n");
+                block.add(RISCVOpcode.J, function.symbol(endLabel(function.name)));
+                break;
+            case LLVM.LLVMCall:
+                callInst(inst, loc, function, block, allocator);
                 break;
             case LLVM.LLVMAdd:
             case LLVM.LLVMSub:
             case LLVM.LLVMMul:
             case LLVM.LLVMSDiv:
             case LLVM.LLVMSRem:
-                binaryInst(ARITHMETIC_INSTRUCTIONS.get(opcode), loc, operands, builder, allocator);
+            case LLVM.LLVMAnd:
+            case LLVM.LLVMOr:
+            case LLVM.LLVMXor:
+            case LLVM.LLVMShl:
+            case LLVM.LLVMLShr:
+            case LLVM.LLVMAShr:
+                binaryInst(opcode, loc, operands, block, allocator);
                 break;
             case LLVM.LLVMICmp:
-                compareInst(inst, Objects.requireNonNull(loc), operands, builder, allocator);
+                if (LLVMLiveIntervals.isFusedCompare(inst)) break;
+                compareInst(inst, Objects.requireNonNull(loc), operands, block, allocator);
                 break;
-            case LLVM.LLVMBr:
-                if (LLVM.LLVMIsConditional(inst) != 0) {
-                    var cond = operands[0].load(builder, allocator);
-                    builder.append(String.format("beqz %s, %s\n", cond.name(),
-                            LLVM.LLVMGetBasicBlockName(LLVM.LLVMGetSuccessor(inst, 1)).getString()));
-                    allocator.freeTemporaries();
-                }
-                builder.append(String.format("j %s\n",
-                        LLVM.LLVMGetBasicBlockName(LLVM.LLVMGetSuccessor(inst, 0)).getString()));
+            case LLVM.LLVMPHI:
+                Objects.requireNonNull(loc).store(allocator.getShadowLocation(inst).load(block, allocator), block,
+                        allocator);
+                allocator.freeTemporaries();
                 break;
             default:
                 throw new IllegalArgumentException("Unknown opcode: " + opcode);
         }
     }
 
+    private static boolean isScalarSlot(LLVMValueRef pointer) {
+        return LLVM.LLVMIsAAllocaInst(pointer) != null && !LLVMLiveIntervals.isArrayAlloca(pointer);
+    }
+
+    private static class Address {
+        public final Register base;
+        public final int offset;
+
+        public Address(Register base, int offset) {
+            this.base = base;
+            this.offset = offset;
+        }
+    }
+
     private static abstract class DataLocation {
-        public abstract Register load(StringBuilder builder, Allocator allocator);
+        public abstract Register load(RISCVMachineBlock block, Allocator allocator);
+
+        public abstract void store(Register value, RISCVMachineBlock block, Allocator allocator);
 
-        public abstract void store(Register value, StringBuilder builder, Allocator allocator);
+        public void loadInto(Register target, RISCVMachineBlock block, Allocator allocator) {
+            target.store(load(block, allocator), block, allocator);
+        }
     }
 
     private static class Constant extends DataLocation {
@@ -215,14 +793,20 @@ public class LLVMCompiler {
         }
 
         @Override
-        public Register load(StringBuilder builder, Allocator allocator) {
+        public Register load(RISCVMachineBlock block, Allocator allocator) {
+            if (value == 0) return ZERO_REGISTER;
             var tmp = allocator.allocateTemporary();
-            builder.append(String.format("li %s, %d\n", tmp.name(), value));
+            block.add(RISCVOpcode.LI, tmp.operand(), RISCVOperand.immediate(value));
             return tmp;
         }
 
         @Override
-        public void store(Register value, StringBuilder builder, Allocator allocator) {
+        public void loadInto(Register target, RISCVMachineBlock block, Allocator allocator) {
+            block.add(RISCVOpcode.LI, target.operand(), RISCVOperand.immediate(value));
+        }
+
+        @Override
+        public void store(Register value, RISCVMachineBlock block, Allocator allocator) {
             throw new UnsupportedOperationException();
         }
     }
@@ -234,172 +818,351 @@ public class LLVMCompiler {
             this.register = register;
         }
 
-        public String name() {
-            return String.format("x%d", register);
+        public long operand() {
+            return RISCVOperand.register(register);
         }
 
         @Override
-        public Register load(StringBuilder builder, Allocator allocator) {
+        public Register load(RISCVMachineBlock block, Allocator allocator) {
             return this;
         }
 
         @Override
-        public void store(Register value, StringBuilder builder, Allocator allocator) {
-            builder.append(String.format("mv %s, %s\n", name(), value.name()));
+        public void store(Register value, RISCVMachineBlock block, Allocator allocator) {
+            if (value.register == register) return;
+            block.add(RISCVOpcode.MV, operand(), value.operand());
         }
     }
 
     private static class Stack extends DataLocation {
+        private static final long SP = RISCVOperand.register(RISCVOperand.SP);
         public final int position;
 
         public Stack(int position) {
             this.position = position;
         }
 
+        private long base(Register scratch, RISCVMachineBlock block) {
+            if (fitsImmediate(position)) return SP;
+            block.add(RISCVOpcode.LI, scratch.operand(), imm(position));
+            block.add(RISCVOpcode.ADD, scratch.operand(), scratch.operand(), SP);
+            return scratch.operand();
+        }
+
+        private long offset() {
+            return imm(fitsImmediate(position) ? position : 0);
+        }
+
         @Override
-        public Register load(StringBuilder builder, Allocator allocator) {
+        public Register load(RISCVMachineBlock block, Allocator allocator) {
             var tmp = allocator.allocateTemporary();
-            builder.append(String.format("lw %s, %d(sp)\n", tmp.name(), position));
+            loadInto(tmp, block, allocator);
             return tmp;
         }
 
         @Override
-        public void store(Register value, StringBuilder builder, Allocator allocator) {
-            builder.append(String.format("sw %s, %d(sp)\n", value.name(), position));
+        public void loadInto(Register target, RISCVMachineBlock block, Allocator allocator) {
+            block.add(RISCVOpcode.LW, target.operand(), offset(), base(target, block));
+        }
+
+        @Override
+        public void store(Register value, RISCVMachineBlock block, Allocator allocator) {
+            if (fitsImmediate(position)) {
+                block.add(RISCVOpcode.SW, value.operand(), offset(), SP);
+                return;
+            }
+            var scratch = allocator.allocateTemporary();
+            block.add(RISCVOpcode.SW, value.operand(), offset(), base(scratch, block));
+            allocator.releaseTemporary(scratch);
+        }
+    }
+
+    private static class StackAddress extends DataLocation {
+        public final int offset;
+
+        public StackAddress(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public Register load(RISCVMachineBlock block, Allocator allocator) {
+            var tmp = allocator.allocateTemporary();
+            loadInto(tmp, block, allocator);
+            return tmp;
+        }
+
+        @Override
+        public void loadInto(Register target, RISCVMachineBlock block, Allocator allocator) {
+            if (fitsImmediate(offset)) {
+                block.add(RISCVOpcode.ADDI, target.operand(), SP_REGISTER.operand(), imm(offset));
+                return;
+            }
+            block.add(RISCVOpcode.LI, target.operand(), imm(offset));
+            block.add(RISCVOpcode.ADD, target.operand(), target.operand(), SP_REGISTER.operand());
+        }
+
+        @Override
+        public void store(Register value, RISCVMachineBlock block, Allocator allocator) {
         }
     }
 
     private static class Global extends DataLocation {
-        private final String name;
+        public final String name;
+        public final int offset;
 
-        public Global(String name) {
+        public Global(String name, int offset) {
             this.name = name;
+            this.offset = offset;
         }
 
         @Override
-        public Register load(StringBuilder builder, Allocator allocator) {
+        public Register load(RISCVMachineBlock block, Allocator allocator) {
             var tmp = allocator.allocateTemporary();
-            builder.append(String.format("la %s, %s\n", tmp.name(), name));
-            builder.append(String.format("lw %s, 0(%s)\n", tmp.name(), tmp.name()));
+            loadInto(tmp, block, allocator);
             return tmp;
         }
 
         @Override
-        public void store(Register value, StringBuilder builder, Allocator allocator) {
+        public void loadInto(Register target, RISCVMachineBlock block, Allocator allocator) {
+            block.add(RISCVOpcode.LA, target.operand(), allocator.function.symbol(name));
+            if (offset == 0) return;
+            if (fitsImmediate(offset)) {
+                block.add(RISCVOpcode.ADDI, target.operand(), target.operand(), imm(offset));
+                return;
+            }
             var tmp = allocator.allocateTemporary();
-            builder.append(String.format("la %s, %s\n", tmp.name(), name));
-            builder.append(String.format("sw %s, 0(%s)\n", value.name(), tmp.name()));
+            block.add(RISCVOpcode.LI, tmp.operand(), imm(offset));
+            block.add(RISCVOpcode.ADD, target.operand(), target.operand(), tmp.operand());
+            allocator.releaseTemporary(tmp);
+        }
+
+        @Override
+        public void store(Register value, RISCVMachineBlock block, Allocator allocator) {
         }
     }
 
     private static class Allocator {
         private static final int[] TEMPORARY_REGISTERS = new int[]{5, 6, 7};
-        private static final int[] AVAILABLE_REGISTERS = new int[]{8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21,
-                22, 23, 24, 25, 26, 27, 28, 29, 30, 31};
+        private static final int[] CALLEE_SAVED_REGISTERS = new int[]{8, 9, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27};
+        private static final int[] CALLER_SAVED_REGISTERS = new int[]{10, 11, 12, 13, 14, 15, 16, 17, 28, 29, 30, 31};
+        private static final int[] LEAF_REGISTERS = new int[]{10, 11, 12, 13, 14, 15, 16, 17, 28, 29, 30, 31, 8, 9, 18,
+                19, 20, 21, 22, 23, 24, 25, 26, 27};
+        private static final int[] CALL_REGISTERS = new int[]{8, 9, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 10, 11, 12,
+                13, 14, 15, 16, 17, 28, 29, 30, 31};
         private final boolean[] temporaries = new boolean[TEMPORARY_REGISTERS.length];
-        private final String[] registers = new String[AVAILABLE_REGISTERS.length];
-        private final ArrayList<String> stack = new ArrayList<>();
 
-        private final HashMap<String, DataLocation> locations = new HashMap<>();
-        private final HashMap<String, Integer> liveRange = new HashMap<>();
+        public final RISCVMachineFunction function;
+        private final LLVMLiveIntervals liveIntervals;
+        private final LLVMRegisterAllocator registerAllocator;
+        private final ArrayList<Integer> calleeSaved = new ArrayList<>();
+        private final int[] saveOffset = new int[32];
+        private final HashMap<LLVMValueRef, Integer> arrayOffsets = new HashMap<>();
+        private final int spillBase;
+        private final int frameSize;
+        private int position;
 
-        private void spill(String name, StringBuilder builder) {
-            var cur = locations.get(name);
-            var sp = allocateStack(name);
-            sp.store(cur.load(builder, this), builder, this);
-            freeTemporaries();
-            locations.put(name, sp);
-        }
+        public Allocator(RISCVMachineFunction function, LLVMLiveIntervals liveIntervals,
+                RegisterAllocation registerAllocation, int[] loopDepth, boolean preserveRegisters) {
+            this.function = function;
+            this.liveIntervals = liveIntervals;
+            var calls = new ArrayList<Integer>();
+            int stackArgs = 0;
+            for (int id = 0; id < liveIntervals.instructions.size(); ++id) {
+                var inst = liveIntervals.instructions.get(id);
+                if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMCall) continue;
+                calls.add(id);
+                stackArgs = Math.max(stackArgs, LLVM.LLVMGetNumArgOperands(inst) - ARGUMENT_REGISTERS);
+            }
 
-        private Register tryAllocateRegister(String name, int end, StringBuilder builder) {
-            for (int i = 0; i < registers.length; ++i) {
-                if (registers[i] != null) continue;
-                registers[i] = name;
-                var res = new Register(AVAILABLE_REGISTERS[i]);
-                locations.put(name, res);
-                return res;
+            var registers = calls.isEmpty() ? LEAF_REGISTERS : CALL_REGISTERS;
+            switch (registerAllocation) {
+                case LINEAR_SCAN:
+                    registerAllocator = new LLVMLinearScan(liveIntervals, registers);
+                    break;
+                case GRAPH_COLORING:
+                    registerAllocator = new LLVMGraphColoring(liveIntervals, registers, loopDepth);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown register allocation: " + registerAllocation);
             }
+            registerAllocator.run();
 
-            int reg = 0;
-            int maxEnd = -1;
-            for (int i = 0; i < registers.length; ++i) {
-                int otherEnd = liveRange.get(registers[i]);
-                if (otherEnd == Integer.MAX_VALUE) continue;
-                if (otherEnd > maxEnd) {
-                    reg = i;
-                    maxEnd = otherEnd;
-                }
+            var callerSaved = new BitSet();
+            for (var id : calls) callerSaved.or(savedAcross(id));
+            if (preserveRegisters) {
+                if (!calls.isEmpty()) calleeSaved.add(RISCVOperand.RA);
+                var used = registerAllocator.usedRegisters();
+                for (var register : CALLEE_SAVED_REGISTERS)
+                    if (used.get(register)) calleeSaved.add(register);
             }
 
-            if (maxEnd > end) {
-                spill(registers[reg], builder);
-                registers[reg] = name;
-                var res = new Register(AVAILABLE_REGISTERS[reg]);
-                locations.put(name, res);
-                return res;
+            spillBase = stackArgs * 4;
+            var offset = spillBase + registerAllocator.slotCount() * 4;
+            Arrays.fill(saveOffset, -1);
+            for (var register = callerSaved.nextSetBit(0); register >= 0;
+                    register = callerSaved.nextSetBit(register + 1)) {
+                saveOffset[register] = offset;
+                offset += 4;
+            }
+            for (var register : calleeSaved) {
+                saveOffset[register] = offset;
+                offset += 4;
+            }
+            var arrays = new ArrayList<LLVMValueRef>();
+            for (int id = 0; id < liveIntervals.instructions.size(); ++id)
+                if (LLVMLiveIntervals.isArrayAlloca(liveIntervals.instructions.get(id)))
+                    arrays.add(liveIntervals.instructions.get(id));
+            arrays.sort(Comparator.comparingInt(alloca -> sizeOf(LLVM.LLVMGetAllocatedType(alloca))));
+            for (var alloca : arrays) {
+                arrayOffsets.put(alloca, offset);
+                offset += sizeOf(LLVM.LLVMGetAllocatedType(alloca));
             }
+            frameSize = (offset + 15) / 16 * 16;
+        }
 
-            return null;
+        private static boolean isCallerSaved(int location) {
+            for (var register : CALLER_SAVED_REGISTERS)
+                if (register == location) return true;
+            return false;
         }
 
-        private Stack allocateStack(String name) {
-            for (int i = 0; i < stack.size(); ++i) {
-                if (stack.get(i) != null) continue;
-                stack.set(i, name);
-                var res = new Stack(i * 4);
-                locations.put(name, res);
-                return res;
+        private BitSet savedAcross(int id) {
+            var pos = LLVMLiveIntervals.position(id);
+            var result = new BitSet();
+            for (int v = 0; v < liveIntervals.variableCount(); ++v) {
+                if (v == id || !liveIntervals.isLiveAcross(v, pos)) continue;
+                var location = registerAllocator.locationAt(v, pos);
+                if (isCallerSaved(location)) result.set(location);
             }
+            return result;
+        }
 
-            var res = new Stack(stack.size() * 4);
-            stack.add(name);
-            locations.put(name, res);
-            return res;
+        public BitSet savedAcross(LLVMValueRef call) {
+            return savedAcross(liveIntervals.instructions.idOf(call));
         }
 
-        public DataLocation allocate(String name, int end, StringBuilder builder) {
-            liveRange.put(name, end);
+        public List<Integer> calleeSaved() {
+            return calleeSaved;
+        }
 
-            var reg = tryAllocateRegister(name, end, builder);
-            if (reg != null) return reg;
+        public Stack saveSlot(int register) {
+            return new Stack(saveOffset[register]);
+        }
 
-            return allocateStack(name);
+        public int arrayOffset(LLVMValueRef alloca) {
+            return arrayOffsets.get(alloca);
         }
 
-        public DataLocation getLocation(String name) {
-            return locations.get(name);
+        public int slotCount() {
+            return registerAllocator.slotCount();
         }
 
-        public int stackSize() {
-            int res = stack.size() * 4;
-            if (res % 16 != 0) {
-                res -= res % 16;
-                res += 16;
+        public int frameSize() {
+            return frameSize;
+        }
+
+        private DataLocation toDataLocation(int location) {
+            if (location >= 0) return new Register(location);
+            if (LLVMRegisterAllocator.isRematerialized(location)) {
+                var variable = LLVMRegisterAllocator.rematerializedVariable(location);
+                return rematerialize(liveIntervals.instructions.get(variable));
             }
-            return res;
-        }
-
-        public void freeUntil(int end) {
-            for (int i = 0; i < registers.length; ++i) {
-                var name = registers[i];
-                if (name == null) continue;
-                int range = liveRange.get(name);
-                if (range <= end) {
-                    registers[i] = null;
-                    locations.remove(name);
-                    liveRange.remove(name);
-                }
+            return new Stack(spillBase + (-location - 1) * 4);
+        }
+
+        private DataLocation rematerialize(LLVMValueRef gep) {
+            var base = LLVM.LLVMGetOperand(gep, 0);
+            if (LLVM.LLVMIsAGlobalVariable(base) != null)
+                return new Global(LLVM.LLVMGetValueName(base).getString(), constantOffset(gep));
+            return new StackAddress(arrayOffset(base) + constantOffset(gep));
+        }
+
+        public boolean isRematerialized(LLVMValueRef value) {
+            var variable = liveIntervals.variableOf(value);
+            return variable != -1
+                    && LLVMRegisterAllocator.isRematerialized(registerAllocator.locationAt(variable, position));
+        }
+
+        public void emitParameterMoves(RISCVMachineBlock block) {
+            position = liveIntervals.blockFrom(0);
+            var moves = new ArrayList<int[]>();
+            for (int i = 0; i < Math.min(liveIntervals.parameters.size(), ARGUMENT_REGISTERS); ++i) {
+                var variable = liveIntervals.parameterVariable(i);
+                if (liveIntervals.intervals[variable] != null)
+                    moves.add(new int[]{RISCVOperand.A0 + i, registerAllocator.locationAt(variable, position)});
             }
+            emitMoves(moves, block);
+            for (int i = ARGUMENT_REGISTERS; i < liveIntervals.parameters.size(); ++i) {
+                var variable = liveIntervals.parameterVariable(i);
+                if (liveIntervals.intervals[variable] == null) continue;
+                emitMove(new Stack(frameSize + (i - ARGUMENT_REGISTERS) * 4),
+                        toDataLocation(registerAllocator.locationAt(variable, position)), block);
+            }
+        }
+
+        public boolean isVariable(LLVMValueRef value) {
+            return liveIntervals.variableOf(value) != -1;
+        }
+
+        public int locationOf(LLVMValueRef value) {
+            return registerAllocator.locationAt(liveIntervals.variableOf(value), position);
+        }
+
+        public void setPosition(LLVMValueRef inst) {
+            position = LLVMLiveIntervals.position(liveIntervals.instructions.idOf(inst));
+        }
+
+        public DataLocation getLocation(LLVMValueRef value) {
+            var variable = liveIntervals.variableOf(value);
+            if (variable == -1) return null;
+            return toDataLocation(registerAllocator.locationAt(variable, position));
+        }
+
+        public DataLocation getShadowLocation(LLVMValueRef phi) {
+            return toDataLocation(registerAllocator.locationAt(liveIntervals.shadowOf(phi), position));
+        }
+
+        public List<int[]> splitMoves() {
+            return registerAllocator.movesAt(position);
+        }
+
+        public List<int[]> edgeMoves(LLVMBasicBlockRef from, LLVMBasicBlockRef to) {
+            return registerAllocator.edgeMoves(liveIntervals.blocks.idOf(from), liveIntervals.blocks.idOf(to));
+        }
 
-            for (int i = 0; i < stack.size(); ++i) {
-                var name = stack.get(i);
-                if (name == null) continue;
-                int range = liveRange.get(name);
-                if (range <= end) {
-                    stack.set(i, null);
-                    locations.remove(name);
-                    liveRange.remove(name);
+        private void emitMove(DataLocation source, DataLocation target, RISCVMachineBlock block) {
+            if (target instanceof Register) source.loadInto((Register) target, block, this);
+            else target.store(source.load(block, this), block, this);
+            freeTemporaries();
+        }
+
+        private void emitMove(int from, int to, RISCVMachineBlock block) {
+            if (from == to || LLVMRegisterAllocator.isRematerialized(to)) return;
+            emitMove(toDataLocation(from), toDataLocation(to), block);
+        }
+
+        public void emitMoves(List<int[]> moves, RISCVMachineBlock block) {
+            var pending = new ArrayList<int[]>();
+            for (var move : moves) pending.add(move.clone());
+            var cycleTemporary = TEMPORARY_REGISTERS[TEMPORARY_REGISTERS.length - 1];
+            while (!pending.isEmpty()) {
+                boolean progress = false;
+                for (var it = pending.iterator(); it.hasNext(); ) {
+                    var move = it.next();
+                    boolean blocked = false;
+                    for (var other : pending)
+                        if (other != move && other[0] == move[1]) blocked = true;
+                    if (blocked) continue;
+                    emitMove(move[0], move[1], block);
+                    it.remove();
+                    progress = true;
                 }
+                if (progress) continue;
+
+                var source = pending.get(0)[0];
+                emitMove(source, cycleTemporary, block);
+                for (var move : pending)
+                    if (move[0] == source) move[0] = cycleTemporary;
             }
         }
 
@@ -413,8 +1176,13 @@ public class LLVMCompiler {
             throw new RuntimeException("No available temporary registers");
         }
 
+        public void releaseTemporary(Register register) {
+            for (int i = 0; i < TEMPORARY_REGISTERS.length; ++i)
+                if (TEMPORARY_REGISTERS[i] == register.register) temporaries[i] = false;
+        }
+
         public void freeTemporaries() {
             Arrays.fill(temporaries, false);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,13 @@
-import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
-import org.llvm4j.llvm4j.Module;
 
-import java.util.HashSet;
+import java.util.BitSet;
 
 public class LLVMDCEPass extends LLVMPass {
-    private final HashSet<LLVMBasicBlockRef> reachable = new HashSet<>();
-    private final HashSet<LLVMBasicBlockRef> worklist = new HashSet<>();
+    private final BitSet reachable = new BitSet();
 
-    public LLVMDCEPass(Module module) {
-        super(module);
+    public LLVMDCEPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        super(analysisManager, function);
     }
 
     @Override
@@ -17,42 +15,52 @@ public class LLVMDCEPass extends LLVMPass {
         super.prepare();
         calculateBB();
 
-        var ref = module.getRef();
-        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
-            worklist.add(LLVM.LLVMGetEntryBasicBlock(func));
-
-        while (!worklist.isEmpty()) {
-            var begin = worklist.iterator();
-            var bb = begin.next();
-            begin.remove();
-            reachable.add(bb);
-            for (var succ : bbSuccessors.get(bb)) {
-                if (reachable.contains(succ)) continue;
-                worklist.add(succ);
+        var worklist = new int[allBasicBlocks.size()];
+        int top = 0;
+        var entry = allBasicBlocks.idOf(LLVM.LLVMGetEntryBasicBlock(function));
+        reachable.set(entry);
+        worklist[top++] = entry;
+        while (top > 0) {
+            var bb = worklist[--top];
+            for (var succ : bbSuccessors[bb]) {
+                if (reachable.get(succ)) continue;
+                reachable.set(succ);
+                worklist[top++] = succ;
             }
         }
     }
 
     private boolean removeUnreachable() {
         boolean flag = false;
-        for (var bb : allBasicBlocks) {
-            if (reachable.contains(bb)) continue;
+        for (int bb = 0; bb < allBasicBlocks.size(); ++bb) {
+            if (reachable.get(bb)) continue;
             flag = true;
-            LLVM.LLVMRemoveBasicBlockFromParent(bb);
+            var block = allBasicBlocks.get(bb);
+            for (var succ : bbSuccessors[bb])
+                if (reachable.get(succ)) removeIncoming(allBasicBlocks.get(succ), block);
+            LLVM.LLVMRemoveBasicBlockFromParent(block);
         }
         return flag;
     }
 
     private boolean blockMerge() {
-        for (var bb : allBasicBlocks) {
-            var succs = bbSuccessors.get(bb);
-            if (succs.size() != 1) continue;
-            var succ = succs.iterator().next();
-            if (bb.equals(succ)) continue;
-            var preds = bbPredecessors.get(succ);
-            if (preds.size() != 1) continue;
+        for (int id = 0; id < allBasicBlocks.size(); ++id) {
+            var succs = bbSuccessors[id];
+            if (succs.length != 1) continue;
+            var succId = succs[0];
+            if (id == succId) continue;
+            if (bbPredecessors[succId].length != 1) continue;
 
-            LLVM.LLVMInstructionRemoveFromParent(LLVM.LLVMGetBasicBlockTerminator(bb));
+            var bb = allBasicBlocks.get(id);
+            var succ = allBasicBlocks.get(succId);
+            for (var inst = LLVM.LLVMGetFirstInstruction(succ); inst != null && LLVM.LLVMIsAPHINode(inst) != null; ) {
+                var phi = inst;
+                inst = LLVM.LLVMGetNextInstruction(inst);
+                LLVM.LLVMReplaceAllUsesWith(phi, LLVM.LLVMGetIncomingValue(phi, 0));
+                LLVM.LLVMInstructionEraseFromParent(phi);
+            }
+            LLVM.LLVMReplaceAllUsesWith(LLVM.LLVMBasicBlockAsValue(succ), LLVM.LLVMBasicBlockAsValue(bb));
+            LLVM.LLVMInstructionEraseFromParent(LLVM.LLVMGetBasicBlockTerminator(bb));
             LLVM.LLVMPositionBuilderAtEnd(builder, bb);
             for (var inst = LLVM.LLVMGetFirstInstruction(succ); inst != null; ) {
                 var oldInst = inst;
@@ -61,21 +69,23 @@ public class LLVMDCEPass extends LLVMPass {
                 LLVM.LLVMInsertIntoBuilder(builder, oldInst);
             }
             LLVM.LLVMRemoveBasicBlockFromParent(succ);
-            calculateBB();
+            recalculateBB();
             return true;
         }
         return false;
     }
 
     private boolean removeSingleJump() {
-        for (var bb : allBasicBlocks) {
+        for (int id = 0; id < allBasicBlocks.size(); ++id) {
+            var bb = allBasicBlocks.get(id);
             var br = LLVM.LLVMGetFirstInstruction(bb);
             if (LLVM.LLVMGetInstructionOpcode(br) == LLVM.LLVMBr && LLVM.LLVMIsConditional(br) == 0) {
                 var succ = LLVM.LLVMGetSuccessor(br, 0);
                 if (bb.equals(succ)) continue;
+                if (LLVM.LLVMIsAPHINode(LLVM.LLVMGetFirstInstruction(succ)) != null) continue;
                 LLVM.LLVMReplaceAllUsesWith(LLVM.LLVMBasicBlockAsValue(bb), LLVM.LLVMBasicBlockAsValue(succ));
                 LLVM.LLVMRemoveBasicBlockFromParent(bb);
-                calculateBB();
+                recalculateBB();
                 return true;
             }
         }
@@ -83,13 +93,17 @@ public class LLVMDCEPass extends LLVMPass {
     }
 
     @Override
-    public boolean run() {
+    public void analyze() {
         prepare();
+    }
 
+    @Override
+    public boolean transform() {
         boolean flag = removeUnreachable();
+        if (flag) recalculateBB();
         while (blockMerge()) flag = true;
         while (removeSingleJump()) flag = true;
 
         return flag;
     }
-}
\ No newline at end of file
+}
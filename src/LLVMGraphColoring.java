@@ -0,0 +1,380 @@
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+public class LLVMGraphColoring implements LLVMRegisterAllocator {
+    private final LLVMLiveIntervals liveIntervals;
+    private final int[] registers;
+    private final int[] loopDepth;
+    private final int nodeCount;
+
+    private final HashSet<Long> adjSet = new HashSet<>();
+    private final ArrayList<ArrayList<Integer>> adjList = new ArrayList<>();
+    private final int[] degree;
+    private final double[] spillCost;
+    private final ArrayList<ArrayList<Integer>> moveList = new ArrayList<>();
+    private final ArrayList<int[]> moves = new ArrayList<>();
+    private final ArrayList<Double> moveWeight = new ArrayList<>();
+
+    private final LinkedHashSet<Integer> simplifyWorklist = new LinkedHashSet<>();
+    private final LinkedHashSet<Integer> freezeWorklist = new LinkedHashSet<>();
+    private final LinkedHashSet<Integer> spillWorklist = new LinkedHashSet<>();
+    private final BitSet coalescedNodes = new BitSet();
+    private final BitSet selected = new BitSet();
+    private final ArrayDeque<Integer> selectStack = new ArrayDeque<>();
+
+    private final LinkedHashSet<Integer> worklistMoves = new LinkedHashSet<>();
+    private final HashSet<Integer> activeMoves = new HashSet<>();
+
+    private final int[] alias;
+    private final int[] color;
+    private final int[] spillSlot;
+    private int slotCount;
+
+    public LLVMGraphColoring(LLVMLiveIntervals liveIntervals, int[] registers, int[] loopDepth) {
+        this.liveIntervals = liveIntervals;
+        this.registers = registers;
+        this.loopDepth = loopDepth;
+        this.nodeCount = liveIntervals.variableCount();
+        degree = new int[nodeCount];
+        spillCost = new double[nodeCount];
+        alias = new int[nodeCount];
+        color = new int[nodeCount];
+        spillSlot = new int[nodeCount];
+        Arrays.fill(color, -1);
+        Arrays.fill(spillSlot, -1);
+        for (int i = 0; i < nodeCount; ++i) {
+            adjList.add(new ArrayList<>());
+            moveList.add(new ArrayList<>());
+            alias[i] = i;
+        }
+    }
+
+    private static long edgeKey(int u, int v) {
+        return ((long) Math.min(u, v) << 32) | Math.max(u, v);
+    }
+
+    private void addEdge(int u, int v) {
+        if (u == v || !adjSet.add(edgeKey(u, v))) return;
+        adjList.get(u).add(v);
+        adjList.get(v).add(u);
+        ++degree[u];
+        ++degree[v];
+    }
+
+    private void addMove(int dst, int src, double weight) {
+        var id = moves.size();
+        moves.add(new int[]{dst, src});
+        moveWeight.add(weight);
+        moveList.get(dst).add(id);
+        moveList.get(src).add(id);
+        worklistMoves.add(id);
+    }
+
+    private ArrayList<int[]> copiesOf(int id) {
+        var result = new ArrayList<int[]>();
+        var inst = liveIntervals.instructions.get(id);
+        switch (LLVM.LLVMGetInstructionOpcode(inst)) {
+            case LLVM.LLVMPHI:
+                result.add(new int[]{id, liveIntervals.shadowOf(inst)});
+                break;
+            case LLVM.LLVMLoad:
+            case LLVM.LLVMZExt: {
+                var operand = LLVM.LLVMGetOperand(inst, 0);
+                if (LLVM.LLVMIsALoadInst(inst) != null && LLVM.LLVMIsAAllocaInst(operand) == null) break;
+                var src = liveIntervals.variableOf(operand);
+                if (src != -1) result.add(new int[]{id, src});
+                break;
+            }
+            case LLVM.LLVMBr: {
+                var block = LLVM.LLVMGetInstructionParent(inst);
+                var countSucc = LLVM.LLVMGetNumSuccessors(inst);
+                for (int i = 0; i < countSucc; ++i)
+                    for (var phi = LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, i));
+                            phi != null && LLVM.LLVMIsAPHINode(phi) != null; phi = LLVM.LLVMGetNextInstruction(phi)) {
+                        var src = liveIntervals.variableOf(LLVMLiveIntervals.incomingFrom(phi, block));
+                        if (src != -1) result.add(new int[]{liveIntervals.shadowOf(phi), src});
+                    }
+                break;
+            }
+        }
+        return result;
+    }
+
+    private int storedSlotOf(int id) {
+        var inst = liveIntervals.instructions.get(id);
+        if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMStore) return -1;
+        var pointer = LLVM.LLVMGetOperand(inst, 1);
+        return LLVM.LLVMIsAAllocaInst(pointer) == null ? -1 : liveIntervals.variableOf(pointer);
+    }
+
+    private static boolean isCopy(ArrayList<int[]> copies, int dst, int src) {
+        for (var copy : copies)
+            if (copy[0] == dst && copy[1] == src) return true;
+        return false;
+    }
+
+    private void build() {
+        for (int bb = 0; bb < liveIntervals.blocks.size(); ++bb) {
+            var weight = Math.pow(10, Math.min(loopDepth[bb], 8));
+            var live = (BitSet) liveIntervals.liveOut[bb].clone();
+            for (int id = liveIntervals.blockBegin[bb + 1] - 1; id >= liveIntervals.blockBegin[bb]; --id) {
+                var defs = liveIntervals.defsOf(id);
+                var uses = liveIntervals.usesOf(id);
+                var copies = copiesOf(id);
+                for (var copy : copies) addMove(copy[0], copy[1], weight);
+
+                for (var def : defs) {
+                    spillCost[def] += weight;
+                    for (var v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+                        if (!isCopy(copies, def, v)) addEdge(def, v);
+                    for (var use : uses)
+                        if (!isCopy(copies, def, use)) addEdge(def, use);
+                    for (var other : defs) addEdge(def, other);
+                }
+                var slot = storedSlotOf(id);
+                if (slot != -1) {
+                    var value = liveIntervals.variableOf(LLVM.LLVMGetOperand(liveIntervals.instructions.get(id), 0));
+                    for (var v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+                        if (v != value) addEdge(slot, v);
+                }
+                for (var def : defs) live.clear(def);
+                for (var use : uses) {
+                    spillCost[use] += weight;
+                    live.set(use);
+                }
+            }
+            if (bb != 0) continue;
+            for (int i = 0; i < liveIntervals.parameters.size(); ++i) {
+                var parameter = liveIntervals.parameterVariable(i);
+                spillCost[parameter] += weight;
+                for (var v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) addEdge(parameter, v);
+            }
+        }
+    }
+
+    private boolean isNode(int n) {
+        return liveIntervals.intervals[n] != null;
+    }
+
+    private ArrayList<Integer> adjacent(int n) {
+        var result = new ArrayList<Integer>();
+        for (var m : adjList.get(n))
+            if (!selected.get(m) && !coalescedNodes.get(m)) result.add(m);
+        return result;
+    }
+
+    private ArrayList<Integer> nodeMoves(int n) {
+        var result = new ArrayList<Integer>();
+        for (var m : moveList.get(n))
+            if (activeMoves.contains(m) || worklistMoves.contains(m)) result.add(m);
+        return result;
+    }
+
+    private boolean moveRelated(int n) {
+        for (var m : moveList.get(n))
+            if (activeMoves.contains(m) || worklistMoves.contains(m)) return true;
+        return false;
+    }
+
+    private void makeWorklist() {
+        for (int n = 0; n < nodeCount; ++n) {
+            if (!isNode(n)) continue;
+            if (degree[n] >= registers.length) spillWorklist.add(n);
+            else if (moveRelated(n)) freezeWorklist.add(n);
+            else simplifyWorklist.add(n);
+        }
+    }
+
+    private void enableMoves(int n) {
+        for (var m : nodeMoves(n))
+            if (activeMoves.remove(m)) worklistMoves.add(m);
+    }
+
+    private void decrementDegree(int m) {
+        var d = degree[m]--;
+        if (d != registers.length) return;
+        enableMoves(m);
+        for (var n : adjacent(m)) enableMoves(n);
+        spillWorklist.remove(m);
+        if (moveRelated(m)) freezeWorklist.add(m);
+        else simplifyWorklist.add(m);
+    }
+
+    private void simplify() {
+        var n = simplifyWorklist.iterator().next();
+        simplifyWorklist.remove(n);
+        selectStack.push(n);
+        selected.set(n);
+        for (var m : adjacent(n)) decrementDegree(m);
+    }
+
+    private int getAlias(int n) {
+        while (coalescedNodes.get(n)) n = alias[n];
+        return n;
+    }
+
+    private void addWorkList(int u) {
+        if (moveRelated(u) || degree[u] >= registers.length) return;
+        freezeWorklist.remove(u);
+        simplifyWorklist.add(u);
+    }
+
+    private boolean conservative(int u, int v) {
+        var nodes = new HashSet<>(adjacent(u));
+        nodes.addAll(adjacent(v));
+        int k = 0;
+        for (var n : nodes)
+            if (degree[n] >= registers.length) ++k;
+        return k < registers.length;
+    }
+
+    private void combine(int u, int v) {
+        if (!freezeWorklist.remove(v)) spillWorklist.remove(v);
+        coalescedNodes.set(v);
+        alias[v] = u;
+        moveList.get(u).addAll(moveList.get(v));
+        spillCost[u] += spillCost[v];
+        enableMoves(v);
+        for (var t : adjacent(v)) {
+            addEdge(t, u);
+            decrementDegree(t);
+        }
+        if (degree[u] >= registers.length && freezeWorklist.remove(u)) spillWorklist.add(u);
+    }
+
+    private void coalesce() {
+        int best = -1;
+        for (var m : worklistMoves)
+            if (best == -1 || moveWeight.get(m) > moveWeight.get(best)) best = m;
+        worklistMoves.remove(best);
+
+        var u = getAlias(moves.get(best)[0]);
+        var v = getAlias(moves.get(best)[1]);
+        if (u == v) addWorkList(u);
+        else if (adjSet.contains(edgeKey(u, v))) {
+            addWorkList(u);
+            addWorkList(v);
+        } else if (conservative(u, v)) {
+            combine(u, v);
+            addWorkList(u);
+        } else activeMoves.add(best);
+    }
+
+    private void freezeMoves(int u) {
+        for (var m : nodeMoves(u)) {
+            var x = getAlias(moves.get(m)[0]);
+            var y = getAlias(moves.get(m)[1]);
+            var v = y == getAlias(u) ? x : y;
+            activeMoves.remove(m);
+            worklistMoves.remove(m);
+            if (!moveRelated(v) && degree[v] < registers.length && freezeWorklist.remove(v)) simplifyWorklist.add(v);
+        }
+    }
+
+    private void freeze() {
+        var u = freezeWorklist.iterator().next();
+        freezeWorklist.remove(u);
+        simplifyWorklist.add(u);
+        freezeMoves(u);
+    }
+
+    private double spillPriority(int n) {
+        var cost = spillCost[n] / degree[n];
+        return liveIntervals.isRematerializable(n) ? cost / 2 : cost;
+    }
+
+    private void selectSpill() {
+        int best = -1;
+        for (var n : spillWorklist)
+            if (best == -1 || spillPriority(n) < spillPriority(best)) best = n;
+        spillWorklist.remove(best);
+        simplifyWorklist.add(best);
+        freezeMoves(best);
+    }
+
+    private void assignColors() {
+        var used = new boolean[registers.length];
+        while (!selectStack.isEmpty()) {
+            var n = selectStack.pop();
+            Arrays.fill(used, false);
+            for (var w : adjList.get(n)) {
+                var c = color[getAlias(w)];
+                if (c != -1) used[c] = true;
+            }
+            for (int c = 0; c < registers.length; ++c)
+                if (!used[c]) {
+                    color[n] = c;
+                    break;
+                }
+            if (color[n] == -1 && !liveIntervals.isRematerializable(n)) spillSlot[n] = slotCount++;
+        }
+        for (var n = coalescedNodes.nextSetBit(0); n >= 0; n = coalescedNodes.nextSetBit(n + 1)) {
+            var root = getAlias(n);
+            color[n] = color[root];
+            spillSlot[n] = spillSlot[root];
+        }
+        colorSlots();
+    }
+
+    private void colorSlots() {
+        var slots = new ArrayList<List<LLVMLiveIntervals.Interval>>();
+        for (int i = 0; i < slotCount; ++i) slots.add(new ArrayList<>());
+        for (int n = 0; n < nodeCount; ++n)
+            if (isNode(n) && spillSlot[n] != -1) slots.get(spillSlot[n]).add(liveIntervals.intervals[n]);
+        var colors = LLVMStackSlotColoring.color(slots);
+        for (int n = 0; n < nodeCount; ++n)
+            if (spillSlot[n] != -1) spillSlot[n] = colors[spillSlot[n]];
+        slotCount = LLVMStackSlotColoring.colorCount(colors);
+    }
+
+    @Override
+    public void run() {
+        build();
+        makeWorklist();
+        while (true) {
+            if (!simplifyWorklist.isEmpty()) simplify();
+            else if (!worklistMoves.isEmpty()) coalesce();
+            else if (!freezeWorklist.isEmpty()) freeze();
+            else if (!spillWorklist.isEmpty()) selectSpill();
+            else break;
+        }
+        assignColors();
+    }
+
+    @Override
+    public int locationAt(int variable, int position) {
+        if (color[variable] != -1) return registers[color[variable]];
+        if (spillSlot[variable] == -1) return LLVMRegisterAllocator.rematerialized(getAlias(variable));
+        return -(spillSlot[variable] + 1);
+    }
+
+    @Override
+    public BitSet usedRegisters() {
+        var result = new BitSet();
+        for (int n = 0; n < nodeCount; ++n)
+            if (isNode(n) && color[n] != -1) result.set(registers[color[n]]);
+        return result;
+    }
+
+    @Override
+    public List<int[]> movesAt(int position) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<int[]> edgeMoves(int pred, int succ) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public int slotCount() {
+        return slotCount;
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class LLVMLinearScan implements LLVMRegisterAllocator {
+    private final LLVMLiveIntervals liveIntervals;
+    private final int[] registers;
+    private final int[] spillSlot;
+    private int slotCount;
+
+    private final PriorityQueue<LLVMLiveIntervals.Interval> unhandled = new PriorityQueue<>(
+            Comparator.comparingInt(LLVMLiveIntervals.Interval::start));
+    private final ArrayList<LLVMLiveIntervals.Interval> active = new ArrayList<>();
+    private final ArrayList<LLVMLiveIntervals.Interval> inactive = new ArrayList<>();
+    private final HashMap<Integer, ArrayList<int[]>> splitMoves = new HashMap<>();
+
+    public LLVMLinearScan(LLVMLiveIntervals liveIntervals, int[] registers) {
+        this.liveIntervals = liveIntervals;
+        this.registers = registers;
+        this.spillSlot = new int[liveIntervals.variableCount()];
+        Arrays.fill(spillSlot, -1);
+    }
+
+    @Override
+    public void run() {
+        for (var interval : liveIntervals.intervals)
+            if (interval != null) unhandled.add(interval);
+
+        while (!unhandled.isEmpty()) {
+            var current = unhandled.poll();
+            var position = current.start();
+            for (var it = active.iterator(); it.hasNext(); ) {
+                var interval = it.next();
+                if (interval.end() <= position) it.remove();
+                else if (!interval.covers(position)) {
+                    it.remove();
+                    inactive.add(interval);
+                }
+            }
+            for (var it = inactive.iterator(); it.hasNext(); ) {
+                var interval = it.next();
+                if (interval.end() <= position) it.remove();
+                else if (interval.covers(position)) {
+                    it.remove();
+                    active.add(interval);
+                }
+            }
+
+            if (!tryAllocateFree(current)) allocateBlocked(current);
+            if (current.register != -1) active.add(current);
+        }
+        colorSlots();
+        resolveSplits();
+    }
+
+    private void colorSlots() {
+        var slots = new ArrayList<List<LLVMLiveIntervals.Interval>>();
+        for (int i = 0; i < slotCount; ++i) slots.add(new ArrayList<>());
+        for (var root : liveIntervals.intervals) {
+            if (root == null || spillSlot[root.variable] == -1) continue;
+            var slot = slots.get(spillSlot[root.variable]);
+            if (root.register == -1) slot.add(root);
+            for (var child : root.children())
+                if (child.register == -1) slot.add(child);
+        }
+        var colors = LLVMStackSlotColoring.color(slots);
+        for (int v = 0; v < spillSlot.length; ++v)
+            if (spillSlot[v] != -1) spillSlot[v] = colors[spillSlot[v]];
+        slotCount = LLVMStackSlotColoring.colorCount(colors);
+    }
+
+    private int indexOf(int register) {
+        for (int i = 0; i < registers.length; ++i)
+            if (registers[i] == register) return i;
+        throw new IllegalArgumentException("Unknown register: " + register);
+    }
+
+    private boolean tryAllocateFree(LLVMLiveIntervals.Interval current) {
+        var freeUntil = new int[registers.length];
+        Arrays.fill(freeUntil, Integer.MAX_VALUE);
+        for (var interval : active) freeUntil[indexOf(interval.register)] = 0;
+        for (var interval : inactive) {
+            var index = indexOf(interval.register);
+            freeUntil[index] = Math.min(freeUntil[index], interval.nextIntersection(current));
+        }
+
+        int best = 0;
+        for (int i = 1; i < registers.length; ++i)
+            if (freeUntil[i] > freeUntil[best]) best = i;
+        if (freeUntil[best] <= current.start()) return false;
+
+        current.register = registers[best];
+        if (freeUntil[best] < current.end()) unhandled.add(current.split(freeUntil[best]));
+        return true;
+    }
+
+    private void allocateBlocked(LLVMLiveIntervals.Interval current) {
+        var start = current.start();
+        var nextUse = new int[registers.length];
+        Arrays.fill(nextUse, Integer.MAX_VALUE);
+        for (var interval : active) {
+            var index = indexOf(interval.register);
+            nextUse[index] = Math.min(nextUse[index], nextUseCost(interval, start));
+        }
+        for (var interval : inactive) {
+            if (interval.nextIntersection(current) == Integer.MAX_VALUE) continue;
+            var index = indexOf(interval.register);
+            nextUse[index] = Math.min(nextUse[index], nextUseCost(interval, start));
+        }
+
+        int best = 0;
+        for (int i = 1; i < registers.length; ++i)
+            if (nextUse[i] > nextUse[best]) best = i;
+        if (liveIntervals.isRematerializable(current.variable) || current.nextUseAfter(start) > nextUse[best]) {
+            spill(current);
+            return;
+        }
+
+        var register = registers[best];
+        current.register = register;
+        for (var it = active.iterator(); it.hasNext(); ) {
+            var interval = it.next();
+            if (interval.register != register) continue;
+            it.remove();
+            splitAndSpill(interval, start);
+        }
+        for (var it = inactive.iterator(); it.hasNext(); ) {
+            var interval = it.next();
+            if (interval.register != register || interval.nextIntersection(current) == Integer.MAX_VALUE) continue;
+            it.remove();
+            splitAndSpill(interval, start);
+        }
+    }
+
+    private int nextUseCost(LLVMLiveIntervals.Interval interval, int position) {
+        if (liveIntervals.isRematerializable(interval.variable)) return Integer.MAX_VALUE;
+        return interval.nextUseAfter(position);
+    }
+
+    private void splitAndSpill(LLVMLiveIntervals.Interval interval, int position) {
+        if (position <= interval.start()) spill(interval);
+        else spill(interval.split(position));
+    }
+
+    private void spill(LLVMLiveIntervals.Interval interval) {
+        interval.register = -1;
+        if (liveIntervals.isRematerializable(interval.variable)) return;
+        if (spillSlot[interval.variable] == -1) spillSlot[interval.variable] = slotCount++;
+    }
+
+    private void resolveSplits() {
+        for (var root : liveIntervals.intervals) {
+            if (root == null) continue;
+            for (var child : root.children()) {
+                var position = child.start();
+                if (liveIntervals.isBlockStart(position)) continue;
+                var before = root.childAt(position - 1);
+                if (!before.covers(position - 1)) continue;
+                var from = location(before);
+                var to = location(child);
+                if (from != to) splitMoves.computeIfAbsent(position, k -> new ArrayList<>()).add(new int[]{from, to});
+            }
+        }
+    }
+
+    public int location(LLVMLiveIntervals.Interval interval) {
+        if (interval.register != -1) return interval.register;
+        if (liveIntervals.isRematerializable(interval.variable))
+            return LLVMRegisterAllocator.rematerialized(interval.variable);
+        return -(spillSlot[interval.variable] + 1);
+    }
+
+    @Override
+    public int locationAt(int variable, int position) {
+        return location(liveIntervals.intervals[variable].childAt(position));
+    }
+
+    @Override
+    public BitSet usedRegisters() {
+        var result = new BitSet();
+        for (var interval : liveIntervals.intervals) {
+            if (interval == null) continue;
+            if (interval.register != -1) result.set(interval.register);
+            for (var child : interval.children())
+                if (child.register != -1) result.set(child.register);
+        }
+        return result;
+    }
+
+    @Override
+    public List<int[]> movesAt(int position) {
+        return splitMoves.getOrDefault(position, new ArrayList<>());
+    }
+
+    @Override
+    public List<int[]> edgeMoves(int pred, int succ) {
+        var result = new ArrayList<int[]>();
+        var live = liveIntervals.liveIn[succ];
+        var predEnd = liveIntervals.blockTo(pred) - 1;
+        var succBegin = liveIntervals.blockFrom(succ);
+        for (var v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            var from = locationAt(v, predEnd);
+            var to = locationAt(v, succBegin);
+            if (from != to) result.add(new int[]{from, to});
+        }
+        return result;
+    }
+
+    @Override
+    public int slotCount() {
+        return slotCount;
+    }
+}
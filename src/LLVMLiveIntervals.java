@@ -0,0 +1,423 @@
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class LLVMLiveIntervals {
+    public final LLVMNumbering<LLVMBasicBlockRef> blocks;
+    public final LLVMNumbering<LLVMValueRef> instructions;
+    public final LLVMNumbering<LLVMValueRef> parameters = new LLVMNumbering<>();
+    public final int[] blockBegin;
+    public final int[][] successors;
+    public final int[][] predecessors;
+    public final BitSet[] liveIn;
+    public final BitSet[] liveOut;
+    public final Interval[] intervals;
+
+    private final int[] shadow;
+    private final int parameterBase;
+    private final int variableCount;
+    private int[] operands = new int[16];
+
+    public LLVMLiveIntervals(LLVMAnalysisManager.CFG cfg, LLVMAnalysisManager.InstFlow instFlow) {
+        blocks = cfg.blocks;
+        instructions = instFlow.instructions;
+        blockBegin = instFlow.blockBegin;
+        successors = cfg.successors;
+        predecessors = cfg.predecessors;
+
+        var instCount = instructions.size();
+        shadow = new int[instCount];
+        int count = instCount;
+        for (int id = 0; id < instCount; ++id)
+            shadow[id] = LLVM.LLVMIsAPHINode(instructions.get(id)) != null ? count++ : -1;
+        parameterBase = count;
+        var function = LLVM.LLVMGetBasicBlockParent(blocks.get(0));
+        var parameterCount = LLVM.LLVMCountParams(function);
+        for (int i = 0; i < parameterCount; ++i) parameters.add(LLVM.LLVMGetParam(function, i));
+        variableCount = count + parameterCount;
+
+        var blockCount = blocks.size();
+        liveIn = new BitSet[blockCount];
+        liveOut = new BitSet[blockCount];
+        var gen = new BitSet[blockCount];
+        var kill = new BitSet[blockCount];
+        for (int bb = 0; bb < blockCount; ++bb) {
+            gen[bb] = new BitSet();
+            kill[bb] = new BitSet();
+            liveIn[bb] = new BitSet();
+            liveOut[bb] = new BitSet();
+            if (bb == 0) kill[bb].set(parameterBase, variableCount);
+            for (int id = blockBegin[bb]; id < blockBegin[bb + 1]; ++id) {
+                var useCount = uses(id);
+                for (int i = 0; i < useCount; ++i)
+                    if (!kill[bb].get(operands[i])) gen[bb].set(operands[i]);
+                var defCount = defs(id);
+                for (int i = 0; i < defCount; ++i) kill[bb].set(operands[i]);
+            }
+        }
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int bb = blockCount - 1; bb >= 0; --bb) {
+                for (var succ : successors[bb]) liveOut[bb].or(liveIn[succ]);
+                var in = (BitSet) liveOut[bb].clone();
+                in.andNot(kill[bb]);
+                in.or(gen[bb]);
+                if (!in.equals(liveIn[bb])) {
+                    liveIn[bb] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        intervals = new Interval[variableCount];
+        for (int bb = blockCount - 1; bb >= 0; --bb) {
+            var from = blockFrom(bb);
+            var to = blockTo(bb);
+            var out = liveOut[bb];
+            for (var v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) interval(v).addRange(from, to);
+
+            for (int id = blockBegin[bb + 1] - 1; id >= blockBegin[bb]; --id) {
+                var pos = position(id);
+                var defCount = defs(id);
+                for (int i = 0; i < defCount; ++i) interval(operands[i]).setFrom(pos);
+                var useCount = uses(id);
+                for (int i = 0; i < useCount; ++i) {
+                    var interval = interval(operands[i]);
+                    interval.addRange(from, pos + 1);
+                    interval.addUse(pos);
+                }
+            }
+        }
+        for (var v = parameterBase; v < variableCount; ++v)
+            if (intervals[v] != null) intervals[v].setFrom(blockFrom(0));
+        for (var interval : intervals)
+            if (interval != null) interval.finish();
+    }
+
+    public static int position(int id) {
+        return id * 2;
+    }
+
+    public int blockFrom(int bb) {
+        return position(blockBegin[bb]);
+    }
+
+    public int blockTo(int bb) {
+        return position(blockBegin[bb + 1]);
+    }
+
+    public boolean isBlockStart(int pos) {
+        var id = pos / 2;
+        for (int lo = 0, hi = blocks.size(); lo < hi; ) {
+            var mid = (lo + hi) >>> 1;
+            if (blockBegin[mid] == id) return true;
+            if (blockBegin[mid] < id) lo = mid + 1;
+            else hi = mid;
+        }
+        return false;
+    }
+
+    public int variableCount() {
+        return variableCount;
+    }
+
+    public int parameterVariable(int index) {
+        return parameterBase + index;
+    }
+
+    public boolean isLiveAcross(int variable, int pos) {
+        var interval = intervals[variable];
+        return interval != null && interval.childAt(pos).covers(pos) && interval.childAt(pos + 1).covers(pos + 1);
+    }
+
+    public int variableOf(LLVMValueRef value) {
+        var id = instructions.idOf(value);
+        if (id == -1) {
+            var index = parameters.idOf(value);
+            return index == -1 ? -1 : parameterVariable(index);
+        }
+        var inst = instructions.get(id);
+        if (!hasValue(inst) || isFusedCompare(inst) || isFoldedAddress(inst) || isArrayAlloca(inst)) return -1;
+        return id;
+    }
+
+    public boolean isRematerializable(int variable) {
+        return variable < instructions.size() && isRematerializable(instructions.get(variable));
+    }
+
+    public static boolean isRematerializable(LLVMValueRef inst) {
+        if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMGetElementPtr || isFoldedAddress(inst)) return false;
+        var base = LLVM.LLVMGetOperand(inst, 0);
+        var global = LLVM.LLVMIsAGlobalVariable(base) != null;
+        if (!global && !isArrayAlloca(base)) return false;
+        var count = LLVM.LLVMGetNumOperands(inst);
+        for (int i = 1; i < count; ++i) {
+            var index = LLVM.LLVMIsAConstantInt(LLVM.LLVMGetOperand(inst, i));
+            if (index == null || global && LLVM.LLVMConstIntGetSExtValue(index) != 0) return false;
+        }
+        return true;
+    }
+
+    public static boolean isArrayAlloca(LLVMValueRef inst) {
+        return LLVM.LLVMIsAAllocaInst(inst) != null
+                && LLVM.LLVMGetTypeKind(LLVM.LLVMGetAllocatedType(inst)) == LLVM.LLVMArrayTypeKind;
+    }
+
+    public static boolean isFoldedAddress(LLVMValueRef inst) {
+        if (LLVM.LLVMIsAInstruction(inst) == null || LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMGetElementPtr)
+            return false;
+        var block = LLVM.LLVMGetInstructionParent(inst);
+        var use = LLVM.LLVMGetFirstUse(inst);
+        if (use == null) return false;
+        for (; use != null; use = LLVM.LLVMGetNextUse(use)) {
+            var user = LLVM.LLVMGetUser(use);
+            var opcode = LLVM.LLVMGetInstructionOpcode(user);
+            if (opcode == LLVM.LLVMStore) {
+                if (LLVM.LLVMGetOperand(user, 0).equals(inst)) return false;
+            } else if (opcode != LLVM.LLVMLoad) return false;
+            if (!LLVM.LLVMGetInstructionParent(user).equals(block)) return false;
+        }
+        return true;
+    }
+
+    public static boolean isFusedCompare(LLVMValueRef inst) {
+        if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMICmp) return false;
+        var use = LLVM.LLVMGetFirstUse(inst);
+        if (use == null || LLVM.LLVMGetNextUse(use) != null) return false;
+        var user = LLVM.LLVMGetUser(use);
+        return LLVM.LLVMGetInstructionOpcode(user) == LLVM.LLVMBr && LLVM.LLVMIsConditional(user) != 0
+                && LLVM.LLVMGetInstructionParent(user).equals(LLVM.LLVMGetInstructionParent(inst));
+    }
+
+    public int shadowOf(LLVMValueRef phi) {
+        var id = instructions.idOf(phi);
+        return id == -1 ? -1 : shadow[id];
+    }
+
+    private static boolean hasValue(LLVMValueRef inst) {
+        return LLVM.LLVMGetTypeKind(LLVM.LLVMTypeOf(inst)) != LLVM.LLVMVoidTypeKind;
+    }
+
+    private Interval interval(int variable) {
+        if (intervals[variable] == null) intervals[variable] = new Interval(variable);
+        return intervals[variable];
+    }
+
+    private static int[] push(int[] buffer, int count, int value) {
+        if (count == buffer.length) buffer = Arrays.copyOf(buffer, count * 2);
+        buffer[count] = value;
+        return buffer;
+    }
+
+    public int[] usesOf(int id) {
+        return Arrays.copyOf(operands, uses(id));
+    }
+
+    public int[] defsOf(int id) {
+        return Arrays.copyOf(operands, defs(id));
+    }
+
+    private int uses(int id) {
+        var inst = instructions.get(id);
+        int count = 0;
+        if (LLVM.LLVMIsAPHINode(inst) != null) {
+            operands = push(operands, count++, shadow[id]);
+            return count;
+        }
+        if (isFusedCompare(inst) || isFoldedAddress(inst)) return 0;
+
+        var operandCnt = LLVM.LLVMGetNumOperands(inst);
+        for (int i = 0; i < operandCnt; ++i) {
+            var value = LLVM.LLVMGetOperand(inst, i);
+            if (isFoldedAddress(value)) {
+                var addressCnt = LLVM.LLVMGetNumOperands(value);
+                for (int j = 0; j < addressCnt; ++j) {
+                    var operand = variableOf(LLVM.LLVMGetOperand(value, j));
+                    if (operand != -1) operands = push(operands, count++, operand);
+                }
+                continue;
+            }
+            var operand = variableOf(value);
+            if (operand != -1) operands = push(operands, count++, operand);
+        }
+
+        if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMBr) return count;
+        if (LLVM.LLVMIsConditional(inst) != 0 && isFusedCompare(LLVM.LLVMGetCondition(inst)))
+            for (int i = 0; i < 2; ++i) {
+                var operand = variableOf(LLVM.LLVMGetOperand(LLVM.LLVMGetCondition(inst), i));
+                if (operand != -1) operands = push(operands, count++, operand);
+            }
+        var block = LLVM.LLVMGetInstructionParent(inst);
+        var countSucc = LLVM.LLVMGetNumSuccessors(inst);
+        for (int i = 0; i < countSucc; ++i)
+            for (var phi = LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, i));
+                    phi != null && LLVM.LLVMIsAPHINode(phi) != null; phi = LLVM.LLVMGetNextInstruction(phi)) {
+                var incoming = variableOf(incomingFrom(phi, block));
+                if (incoming != -1) operands = push(operands, count++, incoming);
+            }
+        return count;
+    }
+
+    private int defs(int id) {
+        var inst = instructions.get(id);
+        int count = 0;
+        if (variableOf(inst) != -1) operands = push(operands, count++, id);
+        if (LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMBr) return count;
+
+        var countSucc = LLVM.LLVMGetNumSuccessors(inst);
+        for (int i = 0; i < countSucc; ++i)
+            for (var phi = LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, i));
+                    phi != null && LLVM.LLVMIsAPHINode(phi) != null; phi = LLVM.LLVMGetNextInstruction(phi))
+                operands = push(operands, count++, shadow[instructions.idOf(phi)]);
+        return count;
+    }
+
+    public static LLVMValueRef incomingFrom(LLVMValueRef phi, LLVMBasicBlockRef block) {
+        var incomingCnt = LLVM.LLVMCountIncoming(phi);
+        for (int i = 0; i < incomingCnt; ++i)
+            if (block.equals(LLVM.LLVMGetIncomingBlock(phi, i))) return LLVM.LLVMGetIncomingValue(phi, i);
+        return null;
+    }
+
+    public static class Interval {
+        public final int variable;
+        private final Interval root;
+        private final ArrayList<Interval> children = new ArrayList<>();
+        private int[] from = new int[4];
+        private int[] to = new int[4];
+        private int rangeCount;
+        private int[] uses = new int[4];
+        private int useCount;
+        public int register = -1;
+
+        private Interval(int variable) {
+            this.variable = variable;
+            this.root = this;
+        }
+
+        private Interval(Interval root) {
+            this.variable = root.variable;
+            this.root = root;
+        }
+
+        private void addRange(int rangeFrom, int rangeTo) {
+            if (rangeCount > 0 && from[rangeCount - 1] <= rangeTo) {
+                from[rangeCount - 1] = Math.min(from[rangeCount - 1], rangeFrom);
+                to[rangeCount - 1] = Math.max(to[rangeCount - 1], rangeTo);
+                return;
+            }
+            from = push(from, rangeCount, rangeFrom);
+            to = push(to, rangeCount++, rangeTo);
+        }
+
+        private void setFrom(int pos) {
+            if (rangeCount == 0 || from[rangeCount - 1] > pos) addRange(pos, pos + 1);
+            else from[rangeCount - 1] = pos;
+        }
+
+        private void addUse(int pos) {
+            uses = push(uses, useCount++, pos);
+        }
+
+        private void finish() {
+            for (int i = 0, j = rangeCount - 1; i < j; ++i, --j) {
+                var tmp = from[i];
+                from[i] = from[j];
+                from[j] = tmp;
+                tmp = to[i];
+                to[i] = to[j];
+                to[j] = tmp;
+            }
+            for (int i = 0, j = useCount - 1; i < j; ++i, --j) {
+                var tmp = uses[i];
+                uses[i] = uses[j];
+                uses[j] = tmp;
+            }
+        }
+
+        public int start() {
+            return from[0];
+        }
+
+        public int end() {
+            return to[rangeCount - 1];
+        }
+
+        public boolean covers(int pos) {
+            for (int i = 0; i < rangeCount; ++i) {
+                if (pos < from[i]) return false;
+                if (pos < to[i]) return true;
+            }
+            return false;
+        }
+
+        public int nextIntersection(Interval other) {
+            int i = 0, j = 0;
+            while (i < rangeCount && j < other.rangeCount) {
+                var lo = Math.max(from[i], other.from[j]);
+                if (lo < Math.min(to[i], other.to[j])) return lo;
+                if (to[i] < other.to[j]) ++i;
+                else ++j;
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        public int nextUseAfter(int pos) {
+            for (int i = 0; i < useCount; ++i)
+                if (uses[i] >= pos) return uses[i];
+            return Integer.MAX_VALUE;
+        }
+
+        public int useCount() {
+            return useCount;
+        }
+
+        public Interval split(int pos) {
+            if (pos <= start() || pos >= end()) throw new IllegalArgumentException("Split outside interval: " + pos);
+            var child = new Interval(root);
+            int i = 0;
+            while (to[i] <= pos) ++i;
+            child.from = Arrays.copyOfRange(from, i, rangeCount);
+            child.to = Arrays.copyOfRange(to, i, rangeCount);
+            child.rangeCount = rangeCount - i;
+            rangeCount = i;
+            if (from[i] < pos) {
+                child.from[0] = pos;
+                to[i] = pos;
+                rangeCount = i + 1;
+            }
+
+            int u = 0;
+            while (u < useCount && uses[u] < pos) ++u;
+            for (int k = u; k < useCount; ++k) child.addUse(uses[k]);
+            useCount = u;
+
+            int index = 0;
+            while (index < root.children.size() && root.children.get(index).start() < child.start()) ++index;
+            root.children.add(index, child);
+            return child;
+        }
+
+        public Interval childAt(int pos) {
+            if (covers(pos) || root.children.isEmpty()) return this;
+            for (var child : root.children)
+                if (child.covers(pos)) return child;
+            return this;
+        }
+
+        public Interval previousSibling() {
+            var index = root.children.indexOf(this);
+            if (index == -1) return null;
+            return index == 0 ? root : root.children.get(index - 1);
+        }
+
+        public ArrayList<Interval> children() {
+            return root.children;
+        }
+    }
+}
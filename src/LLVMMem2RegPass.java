@@ -0,0 +1,174 @@
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Set;
+
+public class LLVMMem2RegPass extends LLVMPass {
+    private final LLVMNumbering<LLVMValueRef> allocas = new LLVMNumbering<>();
+    private final ArrayList<BitSet> phiBlocks = new ArrayList<>();
+    private final HashMap<LLVMValueRef, Integer> phiAlloca = new HashMap<>();
+    private LLVMAnalysisManager.DomTree domTree;
+
+    public LLVMMem2RegPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        super(analysisManager, function);
+    }
+
+    @Override
+    protected void prepare() {
+        super.prepare();
+        calculateBB();
+        domTree = analysisManager.getDomTree(function);
+    }
+
+    @Override
+    public Set<LLVMAnalysisManager.Analysis> preservedAnalyses() {
+        return EnumSet.of(LLVMAnalysisManager.Analysis.CFG, LLVMAnalysisManager.Analysis.DOM_TREE);
+    }
+
+    private static boolean isPromotable(LLVMValueRef alloca) {
+        var type = LLVM.LLVMGetAllocatedType(alloca);
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMIntegerTypeKind) return false;
+        for (var use = LLVM.LLVMGetFirstUse(alloca); use != null; use = LLVM.LLVMGetNextUse(use)) {
+            var user = LLVM.LLVMGetUser(use);
+            if (LLVM.LLVMIsALoadInst(user) != null) {
+                if (!type.equals(LLVM.LLVMTypeOf(user))) return false;
+            } else if (LLVM.LLVMIsAStoreInst(user) != null) {
+                var value = LLVM.LLVMGetOperand(user, 0);
+                if (value.equals(alloca) || !type.equals(LLVM.LLVMTypeOf(value))) return false;
+            } else return false;
+        }
+        return true;
+    }
+
+    private LLVMValueRef promotedPointer(LLVMValueRef inst, int operand) {
+        var pointer = LLVM.LLVMGetOperand(inst, operand);
+        return allocas.contains(pointer) ? pointer : null;
+    }
+
+    @Override
+    public void analyze() {
+        prepare();
+
+        for (var block = LLVM.LLVMGetFirstBasicBlock(function); block != null;
+                block = LLVM.LLVMGetNextBasicBlock(block))
+            for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null;
+                    inst = LLVM.LLVMGetNextInstruction(inst))
+                if (LLVM.LLVMIsAAllocaInst(inst) != null && isPromotable(inst)) allocas.add(inst);
+
+        var defBlocks = new BitSet[allocas.size()];
+        for (int i = 0; i < allocas.size(); ++i) defBlocks[i] = new BitSet();
+        for (int bb = 0; bb < allBasicBlocks.size(); ++bb) {
+            if (!domTree.isReachable(bb)) continue;
+            for (var inst = LLVM.LLVMGetFirstInstruction(allBasicBlocks.get(bb)); inst != null;
+                    inst = LLVM.LLVMGetNextInstruction(inst)) {
+                if (LLVM.LLVMIsAStoreInst(inst) == null) continue;
+                var alloca = allocas.idOf(LLVM.LLVMGetOperand(inst, 1));
+                if (alloca != -1) defBlocks[alloca].set(bb);
+            }
+        }
+
+        var worklist = new int[allBasicBlocks.size()];
+        for (int i = 0; i < allocas.size(); ++i) {
+            var placed = new BitSet();
+            var queued = (BitSet) defBlocks[i].clone();
+            int top = 0;
+            for (var bb = queued.nextSetBit(0); bb >= 0; bb = queued.nextSetBit(bb + 1)) worklist[top++] = bb;
+            while (top > 0) {
+                var bb = worklist[--top];
+                for (var df : domTree.frontier[bb]) {
+                    if (placed.get(df)) continue;
+                    placed.set(df);
+                    if (queued.get(df)) continue;
+                    queued.set(df);
+                    worklist[top++] = df;
+                }
+            }
+            phiBlocks.add(placed);
+        }
+    }
+
+    private void insertPhis() {
+        for (int i = 0; i < allocas.size(); ++i) {
+            var alloca = allocas.get(i);
+            var type = LLVM.LLVMGetAllocatedType(alloca);
+            var name = LLVM.LLVMGetValueName(alloca).getString();
+            var placed = phiBlocks.get(i);
+            for (var bb = placed.nextSetBit(0); bb >= 0; bb = placed.nextSetBit(bb + 1)) {
+                LLVM.LLVMPositionBuilderBefore(builder, LLVM.LLVMGetFirstInstruction(allBasicBlocks.get(bb)));
+                phiAlloca.put(LLVM.LLVMBuildPhi(builder, type, name), i);
+            }
+        }
+    }
+
+    private void rename(LLVMBasicBlockRef block, LLVMValueRef[] current) {
+        for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null; ) {
+            var next = LLVM.LLVMGetNextInstruction(inst);
+            var phi = phiAlloca.get(inst);
+            if (phi != null) current[phi] = inst;
+            else if (LLVM.LLVMIsALoadInst(inst) != null && promotedPointer(inst, 0) != null) {
+                LLVM.LLVMReplaceAllUsesWith(inst, current[allocas.idOf(promotedPointer(inst, 0))]);
+                LLVM.LLVMInstructionEraseFromParent(inst);
+            } else if (LLVM.LLVMIsAStoreInst(inst) != null && promotedPointer(inst, 1) != null) {
+                current[allocas.idOf(promotedPointer(inst, 1))] = LLVM.LLVMGetOperand(inst, 0);
+                LLVM.LLVMInstructionEraseFromParent(inst);
+            }
+            inst = next;
+        }
+
+        var exitInst = LLVM.LLVMGetBasicBlockTerminator(block);
+        if (exitInst == null || LLVM.LLVMGetInstructionOpcode(exitInst) != LLVM.LLVMBr) return;
+        var countSucc = LLVM.LLVMGetNumSuccessors(exitInst);
+        for (int i = 0; i < countSucc; ++i)
+            for (var inst = LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(exitInst, i));
+                    inst != null && LLVM.LLVMIsAPHINode(inst) != null; inst = LLVM.LLVMGetNextInstruction(inst)) {
+                var phi = phiAlloca.get(inst);
+                if (phi != null) LLVM.LLVMAddIncoming(inst, current[phi], block, 1);
+            }
+    }
+
+    private LLVMValueRef[] undefValues() {
+        var result = new LLVMValueRef[allocas.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = LLVM.LLVMGetUndef(LLVM.LLVMGetAllocatedType(allocas.get(i)));
+        return result;
+    }
+
+    @Override
+    public boolean transform() {
+        if (allocas.size() == 0) return false;
+        insertPhis();
+
+        var entry = allBasicBlocks.idOf(LLVM.LLVMGetEntryBasicBlock(function));
+        var stack = new int[allBasicBlocks.size()];
+        var nextChild = new int[allBasicBlocks.size()];
+        var saved = new LLVMValueRef[allBasicBlocks.size()][];
+        var current = undefValues();
+        int top = 0;
+        stack[top++] = entry;
+        rename(allBasicBlocks.get(entry), current);
+        while (top > 0) {
+            var bb = stack[top - 1];
+            var children = domTree.children[bb];
+            if (nextChild[bb] == children.length) {
+                saved[bb] = null;
+                --top;
+                continue;
+            }
+            var child = children[nextChild[bb]++];
+            if (nextChild[bb] > 1) System.arraycopy(saved[bb], 0, current, 0, current.length);
+            else saved[bb] = current.clone();
+            stack[top++] = child;
+            rename(allBasicBlocks.get(child), current);
+        }
+
+        for (int bb = 0; bb < allBasicBlocks.size(); ++bb)
+            if (!domTree.isReachable(bb)) rename(allBasicBlocks.get(bb), undefValues());
+        for (int i = 0; i < allocas.size(); ++i) LLVM.LLVMInstructionEraseFromParent(allocas.get(i));
+        return true;
+    }
+}
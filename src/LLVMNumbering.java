@@ -0,0 +1,69 @@
+import org.bytedeco.javacpp.Pointer;
+
+import java.util.ArrayList;
+
+public class LLVMNumbering<T extends Pointer> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ArrayList<T> values = new ArrayList<>();
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] ids = new int[INITIAL_CAPACITY];
+
+    private static int slot(long key, int mask) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void grow() {
+        var oldKeys = keys;
+        var oldIds = ids;
+        keys = new long[oldKeys.length * 2];
+        ids = new int[oldIds.length * 2];
+        var mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] == 0) continue;
+            var index = slot(oldKeys[i], mask);
+            while (keys[index] != 0) index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            ids[index] = oldIds[i];
+        }
+    }
+
+    public int add(T value) {
+        var address = value.address();
+        var mask = keys.length - 1;
+        var index = slot(address, mask);
+        while (keys[index] != 0) {
+            if (keys[index] == address) return ids[index];
+            index = (index + 1) & mask;
+        }
+
+        var id = values.size();
+        values.add(value);
+        keys[index] = address;
+        ids[index] = id;
+        if (values.size() * 2 > keys.length) grow();
+        return id;
+    }
+
+    public int idOf(Pointer value) {
+        if (value == null) return -1;
+        var address = value.address();
+        var mask = keys.length - 1;
+        for (var index = slot(address, mask); keys[index] != 0; index = (index + 1) & mask)
+            if (keys[index] == address) return ids[index];
+        return -1;
+    }
+
+    public boolean contains(Pointer value) {
+        return idOf(value) != -1;
+    }
+
+    public T get(int id) {
+        return values.get(id);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
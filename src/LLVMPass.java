@@ -4,94 +4,85 @@ import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
 import org.llvm4j.llvm4j.Module;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.EnumSet;
+import java.util.Set;
 
 public abstract class LLVMPass {
     protected final Module module;
+    protected final LLVMAnalysisManager analysisManager;
+    protected final LLVMValueRef function;
     protected final LLVMBuilderRef builder = LLVM.LLVMCreateBuilder();
 
-    protected final HashSet<LLVMBasicBlockRef> allBasicBlocks = new HashSet<>();
-    protected final HashMap<LLVMBasicBlockRef, HashSet<LLVMBasicBlockRef>> bbPredecessors = new HashMap<>();
-    protected final HashMap<LLVMBasicBlockRef, HashSet<LLVMBasicBlockRef>> bbSuccessors = new HashMap<>();
+    protected LLVMNumbering<LLVMBasicBlockRef> allBasicBlocks;
+    protected int[][] bbPredecessors;
+    protected int[][] bbSuccessors;
 
-    protected final HashSet<LLVMValueRef> allInstructions = new HashSet<>();
-    protected final HashMap<LLVMValueRef, HashSet<LLVMValueRef>> instPredecessors = new HashMap<>();
-    protected final HashMap<LLVMValueRef, HashSet<LLVMValueRef>> instSuccessors = new HashMap<>();
+    protected LLVMNumbering<LLVMValueRef> allInstructions;
+    protected int[] bbInstBegin;
+    protected int[][] instPredecessors;
+    protected int[][] instSuccessors;
 
-    public LLVMPass(Module module) {
-        this.module = module;
+    public LLVMPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        this.module = analysisManager.getModule();
+        this.analysisManager = analysisManager;
+        this.function = function;
     }
 
-    protected boolean addInstFlow(LLVMValueRef from, LLVMValueRef to) {
-        var successors = instSuccessors.get(from);
-        if (successors.contains(to)) return false;
-        successors.add(to);
-        instPredecessors.get(to).add(from);
-        return true;
+    protected void calculateBB() {
+        var cfg = analysisManager.getCFG(function);
+        allBasicBlocks = cfg.blocks;
+        bbPredecessors = cfg.predecessors;
+        bbSuccessors = cfg.successors;
     }
 
-    protected boolean addBBFlow(LLVMBasicBlockRef from, LLVMBasicBlockRef to) {
-        var successors = bbSuccessors.get(from);
-        if (successors.contains(to)) return false;
-        successors.add(to);
-        bbPredecessors.get(to).add(from);
-        return true;
+    protected void recalculateBB() {
+        analysisManager.invalidate(function, LLVMAnalysisManager.Analysis.CFG);
+        analysisManager.invalidate(function, LLVMAnalysisManager.Analysis.DOM_TREE);
+        calculateBB();
     }
 
-    protected void calculateBB() {
-        allBasicBlocks.clear();
-        bbPredecessors.clear();
-        bbSuccessors.clear();
-
-        var ref = module.getRef();
-        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func)) {
-            for (var block = LLVM.LLVMGetFirstBasicBlock(func); block != null;
-                    block = LLVM.LLVMGetNextBasicBlock(block)) {
-                allBasicBlocks.add(block);
-                bbPredecessors.put(block, new HashSet<>());
-                var exitInst = LLVM.LLVMGetBasicBlockTerminator(block);
-                var succ = new HashSet<LLVMBasicBlockRef>();
-                if (exitInst != null && LLVM.LLVMGetInstructionOpcode(exitInst) == LLVM.LLVMBr) {
-                    var countSucc = LLVM.LLVMGetNumSuccessors(exitInst);
-                    for (var i = 0; i < countSucc; ++i)
-                        succ.add(LLVM.LLVMGetSuccessor(exitInst, i));
-                }
-                bbSuccessors.put(block, succ);
-            }
-        }
-        bbSuccessors.forEach((bb, succs) -> succs.forEach(succ -> bbPredecessors.get(succ).add(bb)));
+    protected void calculateInst() {
+        var instFlow = analysisManager.getInstFlow(function);
+        allInstructions = instFlow.instructions;
+        bbInstBegin = instFlow.blockBegin;
+        instPredecessors = instFlow.predecessors;
+        instSuccessors = instFlow.successors;
     }
 
-    protected void calculateInst() {
-        allInstructions.clear();
-        instPredecessors.clear();
-        instSuccessors.clear();
-
-        var ref = module.getRef();
-        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func)) {
-            for (var block = LLVM.LLVMGetFirstBasicBlock(func); block != null;
-                    block = LLVM.LLVMGetNextBasicBlock(block))
-                for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null;
-                        inst = LLVM.LLVMGetNextInstruction(inst)) {
-                    allInstructions.add(inst);
-                    instPredecessors.put(inst, new HashSet<>());
-                    var succ = new HashSet<LLVMValueRef>();
-                    if (LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMBr) {
-                        var countSucc = LLVM.LLVMGetNumSuccessors(inst);
-                        for (var i = 0; i < countSucc; ++i)
-                            succ.add(LLVM.LLVMGetFirstInstruction(LLVM.LLVMGetSuccessor(inst, i)));
-                    } else {
-                        var nextInst = LLVM.LLVMGetNextInstruction(inst);
-                        if (nextInst != null) succ.add(nextInst);
-                    }
-                    instSuccessors.put(inst, succ);
-                }
+    protected void removeIncoming(LLVMBasicBlockRef block, LLVMBasicBlockRef pred) {
+        for (var inst = LLVM.LLVMGetFirstInstruction(block); inst != null && LLVM.LLVMIsAPHINode(inst) != null; ) {
+            var phi = inst;
+            inst = LLVM.LLVMGetNextInstruction(inst);
+
+            LLVM.LLVMPositionBuilderBefore(builder, phi);
+            var newPhi = LLVM.LLVMBuildPhi(builder, LLVM.LLVMTypeOf(phi), LLVM.LLVMGetValueName(phi).getString());
+            var incomingCnt = LLVM.LLVMCountIncoming(phi);
+            for (int i = 0; i < incomingCnt; ++i) {
+                var incomingBlock = LLVM.LLVMGetIncomingBlock(phi, i);
+                if (incomingBlock.equals(pred)) continue;
+                LLVM.LLVMAddIncoming(newPhi, LLVM.LLVMGetIncomingValue(phi, i), incomingBlock, 1);
+            }
+            LLVM.LLVMReplaceAllUsesWith(phi, newPhi);
+            LLVM.LLVMInstructionEraseFromParent(phi);
         }
-        instSuccessors.forEach((inst, succs) -> succs.forEach(succ -> instPredecessors.get(succ).add(inst)));
     }
 
     protected void prepare() {}
 
-    public abstract boolean run();
-}
\ No newline at end of file
+    public Set<LLVMAnalysisManager.Analysis> preservedAnalyses() {
+        return EnumSet.noneOf(LLVMAnalysisManager.Analysis.class);
+    }
+
+    public abstract void analyze();
+
+    public abstract boolean transform();
+
+    public boolean run() {
+        analyze();
+        return transform();
+    }
+
+    public void dispose() {
+        LLVM.LLVMDisposeBuilder(builder);
+    }
+}
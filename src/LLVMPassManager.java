@@ -1,18 +1,143 @@
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
 import org.llvm4j.llvm4j.Module;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class LLVMPassManager {
     private final Module module;
+    private final LLVMAnalysisManager analysisManager;
+    private final int parallelism;
+    private final Mode mode;
+    private final ReentrantReadWriteLock moduleLock = new ReentrantReadWriteLock();
 
     public LLVMPassManager(Module module) {
+        this(module, 1, Mode.DENSE);
+    }
+
+    public LLVMPassManager(Module module, int parallelism, Mode mode) {
         this.module = module;
+        this.analysisManager = new LLVMAnalysisManager(module);
+        this.parallelism = parallelism;
+        this.mode = mode;
     }
 
-    public void run() {
-        boolean flag = true;
-        while (flag) {
-            flag = new LLVMCPPass(module).run();
-            flag |= new LLVMUVPass(module).run();
-            flag |= new LLVMDCEPass(module).run();
+    public enum Mode {
+        DENSE, SPARSE
+    }
+
+    private boolean runPass(LLVMPass pass) {
+        try {
+            moduleLock.readLock().lock();
+            try {
+                pass.analyze();
+            } finally {
+                moduleLock.readLock().unlock();
+            }
+
+            moduleLock.writeLock().lock();
+            try {
+                if (!pass.transform()) return false;
+                analysisManager.invalidateExcept(pass.function, pass.preservedAnalyses());
+                return true;
+            } finally {
+                moduleLock.writeLock().unlock();
+            }
+        } finally {
+            pass.dispose();
         }
     }
-}
\ No newline at end of file
+
+    private boolean runPipeline(LLVMValueRef function) {
+        boolean flag;
+        if (mode == Mode.SPARSE) {
+            flag = runPass(new LLVMMem2RegPass(analysisManager, function));
+            flag |= runPass(new LLVMSCCPPass(analysisManager, function));
+        } else flag = runPass(new LLVMCPPass(analysisManager, function));
+        flag |= runPass(new LLVMUVPass(analysisManager, function));
+        flag |= runPass(new LLVMDCEPass(analysisManager, function));
+        return flag;
+    }
+
+    private static void enqueue(LinkedHashSet<LLVMValueRef> worklist, Iterable<LLVMValueRef> functions) {
+        for (var function : functions)
+            if (LLVM.LLVMCountBasicBlocks(function) != 0) worklist.add(function);
+    }
+
+    private LinkedHashSet<LLVMValueRef> initialWorklist() {
+        var worklist = new LinkedHashSet<LLVMValueRef>();
+        var ref = module.getRef();
+        for (var func = LLVM.LLVMGetFirstFunction(ref); func != null; func = LLVM.LLVMGetNextFunction(func))
+            if (LLVM.LLVMCountBasicBlocks(func) != 0) worklist.add(func);
+        return worklist;
+    }
+
+    private void changed(LLVMValueRef function, HashSet<LLVMValueRef> oldCallees,
+            LinkedHashSet<LLVMValueRef> worklist) {
+        var callGraph = analysisManager.getCallGraph();
+        worklist.add(function);
+        if (!callGraph.update(function)) return;
+        enqueue(worklist, oldCallees);
+        enqueue(worklist, callGraph.getCallees(function));
+        enqueue(worklist, callGraph.getCallers(function));
+    }
+
+    private void runSequential() {
+        var callGraph = analysisManager.getCallGraph();
+        var worklist = initialWorklist();
+        while (!worklist.isEmpty()) {
+            var begin = worklist.iterator();
+            var function = begin.next();
+            begin.remove();
+
+            var oldCallees = new HashSet<>(callGraph.getCallees(function));
+            if (runPipeline(function)) changed(function, oldCallees, worklist);
+        }
+    }
+
+    private void runParallel() {
+        var callGraph = analysisManager.getCallGraph();
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            var worklist = initialWorklist();
+            while (!worklist.isEmpty()) {
+                var round = new ArrayList<>(worklist);
+                worklist.clear();
+
+                var oldCallees = new HashMap<LLVMValueRef, HashSet<LLVMValueRef>>();
+                var tasks = new ArrayList<Callable<Boolean>>();
+                for (var function : round) {
+                    oldCallees.put(function, new HashSet<>(callGraph.getCallees(function)));
+                    tasks.add(() -> runPipeline(function));
+                }
+
+                var results = pool.invokeAll(tasks);
+                for (int i = 0; i < round.size(); ++i) {
+                    var function = round.get(i);
+                    if (results.get(i).get()) changed(function, oldCallees.get(function), worklist);
+                }
+            }
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void run() {
+        if (parallelism > 1) runParallel();
+        else runSequential();
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.BitSet;
+import java.util.List;
+
+public interface LLVMRegisterAllocator {
+    static int rematerialized(int variable) {
+        return Integer.MIN_VALUE + variable;
+    }
+
+    static boolean isRematerialized(int location) {
+        return location < Integer.MIN_VALUE / 2;
+    }
+
+    static int rematerializedVariable(int location) {
+        return location - Integer.MIN_VALUE;
+    }
+
+    void run();
+
+    int locationAt(int variable, int position);
+
+    BitSet usedRegisters();
+
+    List<int[]> movesAt(int position);
+
+    List<int[]> edgeMoves(int pred, int succ);
+
+    int slotCount();
+}
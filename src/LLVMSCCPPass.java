@@ -0,0 +1,392 @@
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class LLVMSCCPPass extends LLVMPass {
+    private static final int TOP = 0;
+    private static final int CONSTANT = 1;
+    private static final int BOTTOM = 2;
+
+    private final BitSet executable = new BitSet();
+    private final BitSet blockWorklist = new BitSet();
+    private final BitSet valueWorklist = new BitSet();
+    private int[] state;
+    private long[] constant;
+    private int[] feasibleSuccessors;
+    private int[] instBlock;
+    private int[][] users;
+
+    public LLVMSCCPPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        super(analysisManager, function);
+    }
+
+    @Override
+    protected void prepare() {
+        super.prepare();
+        calculateInst();
+        calculateBB();
+
+        var instCount = allInstructions.size();
+        state = new int[instCount];
+        constant = new long[instCount];
+        feasibleSuccessors = new int[allBasicBlocks.size()];
+        instBlock = new int[instCount];
+        for (int bb = 0; bb < allBasicBlocks.size(); ++bb)
+            for (int id = bbInstBegin[bb]; id < bbInstBegin[bb + 1]; ++id) instBlock[id] = bb;
+
+        users = new int[instCount][];
+        var buffer = new int[16];
+        for (int id = 0; id < instCount; ++id) {
+            int count = 0;
+            for (var use = LLVM.LLVMGetFirstUse(allInstructions.get(id)); use != null; use = LLVM.LLVMGetNextUse(use)) {
+                var user = allInstructions.idOf(LLVM.LLVMGetUser(use));
+                if (user == -1) continue;
+                if (count == buffer.length) buffer = Arrays.copyOf(buffer, count * 2);
+                buffer[count++] = user;
+            }
+            users[id] = Arrays.copyOf(buffer, count);
+        }
+    }
+
+    private static long normalize(long value, int width) {
+        var shift = Long.SIZE - width;
+        return (value << shift) >> shift;
+    }
+
+    private static long unsigned(long value, int width) {
+        if (width >= Long.SIZE) return value;
+        return value & ((1L << width) - 1);
+    }
+
+    private static int widthOf(LLVMValueRef value) {
+        var type = LLVM.LLVMTypeOf(value);
+        if (LLVM.LLVMGetTypeKind(type) != LLVM.LLVMIntegerTypeKind) return -1;
+        return LLVM.LLVMGetIntTypeWidth(type);
+    }
+
+    private int stateOf(LLVMValueRef value) {
+        if (LLVM.LLVMIsAConstantInt(value) != null) return CONSTANT;
+        var id = allInstructions.idOf(value);
+        if (id == -1) return BOTTOM;
+        return state[id];
+    }
+
+    private long constantOf(LLVMValueRef value) {
+        var constantInt = LLVM.LLVMIsAConstantInt(value);
+        if (constantInt != null) return LLVM.LLVMConstIntGetSExtValue(constantInt);
+        return constant[allInstructions.idOf(value)];
+    }
+
+    private void lower(int id, int newState, long newConstant) {
+        var oldState = state[id];
+        if (oldState == BOTTOM || newState == TOP) return;
+        if (oldState == CONSTANT) {
+            if (newState == CONSTANT && constant[id] == newConstant) return;
+            newState = BOTTOM;
+        }
+        state[id] = newState;
+        constant[id] = newConstant;
+        valueWorklist.set(id);
+    }
+
+    private void markEdge(int bb, int k) {
+        var bit = 1 << k;
+        if ((feasibleSuccessors[bb] & bit) != 0) return;
+        feasibleSuccessors[bb] |= bit;
+
+        var succ = bbSuccessors[bb][k];
+        if (!executable.get(succ)) {
+            executable.set(succ);
+            blockWorklist.set(succ);
+            return;
+        }
+        for (int id = bbInstBegin[succ]; id < bbInstBegin[succ + 1]; ++id) {
+            var inst = allInstructions.get(id);
+            if (LLVM.LLVMIsAPHINode(inst) == null) break;
+            visitPhi(id, inst);
+        }
+    }
+
+    private void markEdgeTo(int bb, LLVMValueRef exitInst, int successor) {
+        var target = allBasicBlocks.idOf(LLVM.LLVMGetSuccessor(exitInst, successor));
+        var succs = bbSuccessors[bb];
+        for (int k = 0; k < succs.length; ++k)
+            if (succs[k] == target) markEdge(bb, k);
+    }
+
+    private boolean isFeasible(int from, int to) {
+        var succs = bbSuccessors[from];
+        for (int k = 0; k < succs.length; ++k)
+            if (succs[k] == to) return (feasibleSuccessors[from] & (1 << k)) != 0;
+        return false;
+    }
+
+    private void visitBranch(int id, LLVMValueRef inst) {
+        var bb = instBlock[id];
+        if (LLVM.LLVMIsConditional(inst) == 0) {
+            markEdgeTo(bb, inst, 0);
+            return;
+        }
+
+        var cond = LLVM.LLVMGetCondition(inst);
+        switch (stateOf(cond)) {
+            case CONSTANT:
+                markEdgeTo(bb, inst, constantOf(cond) == 0 ? 1 : 0);
+                break;
+            case BOTTOM:
+                markEdgeTo(bb, inst, 0);
+                markEdgeTo(bb, inst, 1);
+                break;
+        }
+    }
+
+    private void visitPhi(int id, LLVMValueRef inst) {
+        var bb = instBlock[id];
+        var incomingCnt = LLVM.LLVMCountIncoming(inst);
+        int newState = TOP;
+        long newConstant = 0;
+        boolean undef = false;
+        for (int i = 0; i < incomingCnt && newState != BOTTOM; ++i) {
+            var pred = allBasicBlocks.idOf(LLVM.LLVMGetIncomingBlock(inst, i));
+            if (pred == -1 || !isFeasible(pred, bb)) continue;
+            var value = LLVM.LLVMGetIncomingValue(inst, i);
+            if (LLVM.LLVMIsAUndefValue(value) != null) {
+                undef = true;
+                continue;
+            }
+            var valueState = stateOf(value);
+            if (valueState == TOP) continue;
+            if (valueState == BOTTOM) newState = BOTTOM;
+            else if (newState == TOP) {
+                newState = CONSTANT;
+                newConstant = constantOf(value);
+            } else if (newConstant != constantOf(value)) newState = BOTTOM;
+        }
+        if (newState == TOP && undef) newState = BOTTOM;
+        lower(id, newState, newConstant);
+    }
+
+    private boolean compare(int predicate, long a, long b, int width) {
+        switch (predicate) {
+            case LLVM.LLVMIntEQ:
+                return a == b;
+            case LLVM.LLVMIntNE:
+                return a != b;
+            case LLVM.LLVMIntSGT:
+                return a > b;
+            case LLVM.LLVMIntSGE:
+                return a >= b;
+            case LLVM.LLVMIntSLT:
+                return a < b;
+            case LLVM.LLVMIntSLE:
+                return a <= b;
+            case LLVM.LLVMIntUGT:
+                return Long.compareUnsigned(unsigned(a, width), unsigned(b, width)) > 0;
+            case LLVM.LLVMIntUGE:
+                return Long.compareUnsigned(unsigned(a, width), unsigned(b, width)) >= 0;
+            case LLVM.LLVMIntULT:
+                return Long.compareUnsigned(unsigned(a, width), unsigned(b, width)) < 0;
+            case LLVM.LLVMIntULE:
+                return Long.compareUnsigned(unsigned(a, width), unsigned(b, width)) <= 0;
+            default:
+                throw new IllegalArgumentException("Unknown predicate: " + predicate);
+        }
+    }
+
+    private Long binaryOp(int opcode, long a, long b, int width) {
+        switch (opcode) {
+            case LLVM.LLVMAdd:
+                return a + b;
+            case LLVM.LLVMSub:
+                return a - b;
+            case LLVM.LLVMMul:
+                return a * b;
+            case LLVM.LLVMSDiv:
+                return b == 0 ? null : a / b;
+            case LLVM.LLVMSRem:
+                return b == 0 ? null : a % b;
+            case LLVM.LLVMUDiv:
+                return b == 0 ? null : Long.divideUnsigned(unsigned(a, width), unsigned(b, width));
+            case LLVM.LLVMURem:
+                return b == 0 ? null : Long.remainderUnsigned(unsigned(a, width), unsigned(b, width));
+            case LLVM.LLVMAnd:
+                return a & b;
+            case LLVM.LLVMOr:
+                return a | b;
+            case LLVM.LLVMXor:
+                return a ^ b;
+            case LLVM.LLVMShl:
+                return b < 0 || b >= width ? null : a << b;
+            case LLVM.LLVMLShr:
+                return b < 0 || b >= width ? null : unsigned(a, width) >>> b;
+            case LLVM.LLVMAShr:
+                return b < 0 || b >= width ? null : a >> b;
+            default:
+                return null;
+        }
+    }
+
+    private void visitValue(int id, LLVMValueRef inst, int opcode) {
+        var width = widthOf(inst);
+        if (width == -1) {
+            lower(id, BOTTOM, 0);
+            return;
+        }
+
+        var operandCnt = LLVM.LLVMGetNumOperands(inst);
+        int newState = CONSTANT;
+        for (int i = 0; i < operandCnt; ++i) {
+            var operandState = stateOf(LLVM.LLVMGetOperand(inst, i));
+            if (operandState == BOTTOM) {
+                newState = BOTTOM;
+                break;
+            }
+            if (operandState == TOP) newState = TOP;
+        }
+
+        if (opcode == LLVM.LLVMSelect) {
+            var cond = LLVM.LLVMGetOperand(inst, 0);
+            var condState = stateOf(cond);
+            if (condState == TOP) return;
+            if (condState == CONSTANT) {
+                var chosen = LLVM.LLVMGetOperand(inst, constantOf(cond) != 0 ? 1 : 2);
+                var chosenState = stateOf(chosen);
+                lower(id, chosenState, chosenState == CONSTANT ? constantOf(chosen) : 0);
+                return;
+            }
+        }
+        if (newState != CONSTANT) {
+            lower(id, newState, 0);
+            return;
+        }
+
+        Long result;
+        switch (opcode) {
+            case LLVM.LLVMZExt: {
+                var operand = LLVM.LLVMGetOperand(inst, 0);
+                result = unsigned(constantOf(operand), widthOf(operand));
+                break;
+            }
+            case LLVM.LLVMSExt:
+            case LLVM.LLVMTrunc:
+                result = constantOf(LLVM.LLVMGetOperand(inst, 0));
+                break;
+            case LLVM.LLVMICmp: {
+                var a = LLVM.LLVMGetOperand(inst, 0);
+                result = compare(LLVM.LLVMGetICmpPredicate(inst), constantOf(a),
+                        constantOf(LLVM.LLVMGetOperand(inst, 1)), widthOf(a)) ? 1L : 0L;
+                break;
+            }
+            default:
+                result = operandCnt == 2 ? binaryOp(opcode, constantOf(LLVM.LLVMGetOperand(inst, 0)),
+                        constantOf(LLVM.LLVMGetOperand(inst, 1)), width) : null;
+        }
+
+        if (result == null) lower(id, BOTTOM, 0);
+        else lower(id, CONSTANT, normalize(result, width));
+    }
+
+    private void visit(int id) {
+        var inst = allInstructions.get(id);
+        var opcode = LLVM.LLVMGetInstructionOpcode(inst);
+        switch (opcode) {
+            case LLVM.LLVMBr:
+                visitBranch(id, inst);
+                break;
+            case LLVM.LLVMPHI:
+                visitPhi(id, inst);
+                break;
+            case LLVM.LLVMAdd:
+            case LLVM.LLVMSub:
+            case LLVM.LLVMMul:
+            case LLVM.LLVMSDiv:
+            case LLVM.LLVMSRem:
+            case LLVM.LLVMUDiv:
+            case LLVM.LLVMURem:
+            case LLVM.LLVMAnd:
+            case LLVM.LLVMOr:
+            case LLVM.LLVMXor:
+            case LLVM.LLVMShl:
+            case LLVM.LLVMLShr:
+            case LLVM.LLVMAShr:
+            case LLVM.LLVMICmp:
+            case LLVM.LLVMZExt:
+            case LLVM.LLVMSExt:
+            case LLVM.LLVMTrunc:
+            case LLVM.LLVMSelect:
+                visitValue(id, inst, opcode);
+                break;
+            case LLVM.LLVMStore:
+            case LLVM.LLVMRet:
+            case LLVM.LLVMUnreachable:
+                break;
+            default:
+                lower(id, BOTTOM, 0);
+        }
+    }
+
+    @Override
+    public void analyze() {
+        prepare();
+
+        var entry = allBasicBlocks.idOf(LLVM.LLVMGetEntryBasicBlock(function));
+        executable.set(entry);
+        blockWorklist.set(entry);
+        while (!blockWorklist.isEmpty() || !valueWorklist.isEmpty()) {
+            while (!valueWorklist.isEmpty()) {
+                var id = valueWorklist.nextSetBit(0);
+                valueWorklist.clear(id);
+                for (var user : users[id])
+                    if (executable.get(instBlock[user])) visit(user);
+            }
+
+            var bb = blockWorklist.nextSetBit(0);
+            if (bb < 0) continue;
+            blockWorklist.clear(bb);
+            for (int id = bbInstBegin[bb]; id < bbInstBegin[bb + 1]; ++id) visit(id);
+        }
+    }
+
+    private boolean replaceConstants() {
+        boolean flag = false;
+        for (int id = 0; id < allInstructions.size(); ++id) {
+            if (state[id] != CONSTANT || !executable.get(instBlock[id])) continue;
+            var inst = allInstructions.get(id);
+            LLVM.LLVMReplaceAllUsesWith(inst, LLVM.LLVMConstInt(LLVM.LLVMTypeOf(inst), constant[id], 1));
+            LLVM.LLVMInstructionEraseFromParent(inst);
+            flag = true;
+        }
+        return flag;
+    }
+
+    private boolean foldConstBr() {
+        boolean flag = false;
+        for (var bb = executable.nextSetBit(0); bb >= 0; bb = executable.nextSetBit(bb + 1)) {
+            var block = allBasicBlocks.get(bb);
+            var exitInst = LLVM.LLVMGetBasicBlockTerminator(block);
+            if (exitInst == null || LLVM.LLVMGetInstructionOpcode(exitInst) != LLVM.LLVMBr ||
+                LLVM.LLVMIsConditional(exitInst) == 0) continue;
+            var cond = LLVM.LLVMGetCondition(exitInst);
+            if (LLVM.LLVMIsAConstantInt(cond) == null) continue;
+
+            var taken = LLVM.LLVMConstIntGetZExtValue(cond) != 0 ? 0 : 1;
+            var constSucc = LLVM.LLVMGetSuccessor(exitInst, taken);
+            var deadSucc = LLVM.LLVMGetSuccessor(exitInst, 1 - taken);
+            LLVM.LLVMInstructionEraseFromParent(exitInst);
+            LLVM.LLVMPositionBuilderAtEnd(builder, block);
+            LLVM.LLVMBuildBr(builder, constSucc);
+            if (!deadSucc.equals(constSucc)) removeIncoming(deadSucc, block);
+            flag = true;
+        }
+        return flag;
+    }
+
+    @Override
+    public boolean transform() {
+        boolean flag = replaceConstants();
+        flag |= foldConstBr();
+        return flag;
+    }
+}
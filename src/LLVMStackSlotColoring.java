@@ -0,0 +1,41 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class LLVMStackSlotColoring {
+    private static int useCount(List<LLVMLiveIntervals.Interval> slot) {
+        int result = 0;
+        for (var interval : slot) result += interval.useCount();
+        return result;
+    }
+
+    private static boolean conflicts(List<LLVMLiveIntervals.Interval> a, List<LLVMLiveIntervals.Interval> b) {
+        for (var x : a)
+            for (var y : b)
+                if (x.nextIntersection(y) != Integer.MAX_VALUE) return true;
+        return false;
+    }
+
+    public static int[] color(List<List<LLVMLiveIntervals.Interval>> slots) {
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < slots.size(); ++i) order.add(i);
+        order.sort(Comparator.comparingInt((Integer i) -> -useCount(slots.get(i))).thenComparingInt(i -> i));
+
+        var colors = new int[slots.size()];
+        var members = new ArrayList<List<LLVMLiveIntervals.Interval>>();
+        for (var slot : order) {
+            int color = 0;
+            while (color < members.size() && conflicts(members.get(color), slots.get(slot))) ++color;
+            if (color == members.size()) members.add(new ArrayList<>());
+            members.get(color).addAll(slots.get(slot));
+            colors[slot] = color;
+        }
+        return colors;
+    }
+
+    public static int colorCount(int[] colors) {
+        int result = 0;
+        for (var color : colors) result = Math.max(result, color + 1);
+        return result;
+    }
+}
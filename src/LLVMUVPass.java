@@ -1,19 +1,20 @@
 import org.bytedeco.llvm.LLVM.LLVMTypeRef;
 import org.bytedeco.llvm.LLVM.LLVMValueRef;
 import org.bytedeco.llvm.global.LLVM;
-import org.llvm4j.llvm4j.Module;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Set;
 
 public class LLVMUVPass extends LLVMPass {
     private final LLVMTypeRef VOID_TYPE;
-    private final HashMap<LLVMValueRef, HashSet<LLVMValueRef>> allocasStore = new HashMap<>();
-    private final HashSet<LLVMValueRef> variables = new HashSet<>();
-    private final HashSet<LLVMValueRef> used = new HashSet<>();
+    private final BitSet variables = new BitSet();
+    private final BitSet used = new BitSet();
+    private int[] storeTarget;
 
-    public LLVMUVPass(Module module) {
-        super(module);
+    public LLVMUVPass(LLVMAnalysisManager analysisManager, LLVMValueRef function) {
+        super(analysisManager, function);
         VOID_TYPE = module.getContext().getVoidType().getRef();
     }
 
@@ -22,45 +23,58 @@ public class LLVMUVPass extends LLVMPass {
         super.prepare();
         calculateInst();
 
-        allInstructions.forEach(inst -> {
-            if (!VOID_TYPE.equals(LLVM.LLVMTypeOf(inst))) variables.add(inst);
-            if (LLVM.LLVMGetInstructionOpcode(inst) == LLVM.LLVMAlloca) allocasStore.put(inst, new HashSet<>());
-        });
+        storeTarget = new int[allInstructions.size()];
+        Arrays.fill(storeTarget, -1);
+        for (int id = 0; id < allInstructions.size(); ++id)
+            if (isRemovable(allInstructions.get(id))) variables.set(id);
+    }
+
+    private boolean isRemovable(LLVMValueRef inst) {
+        return !VOID_TYPE.equals(LLVM.LLVMTypeOf(inst)) && LLVM.LLVMGetInstructionOpcode(inst) != LLVM.LLVMCall;
     }
 
     private void mark(LLVMValueRef value) {
         if (LLVM.LLVMIsAConstantInt(value) != null) return;
-        used.add(value);
+        var id = allInstructions.idOf(value);
+        if (id != -1) used.set(id);
     }
 
-    private void markUsage(LLVMValueRef inst) {
+    private void markUsage(int id) {
+        var inst = allInstructions.get(id);
         var opcode = LLVM.LLVMGetInstructionOpcode(inst);
         if (opcode == LLVM.LLVMStore) {
             mark(LLVM.LLVMGetOperand(inst, 0));
-            var stores = allocasStore.get(LLVM.LLVMGetOperand(inst, 1));
-            if (stores != null) stores.add(inst);
+            var target = allInstructions.idOf(LLVM.LLVMGetOperand(inst, 1));
+            if (target != -1 && LLVM.LLVMGetInstructionOpcode(allInstructions.get(target)) == LLVM.LLVMAlloca)
+                storeTarget[id] = target;
         } else {
             var operandCnt = LLVM.LLVMGetNumOperands(inst);
             for (var i = 0; i < operandCnt; ++i) mark(LLVM.LLVMGetOperand(inst, i));
         }
     }
 
-    private void remove(LLVMValueRef inst) {
-        if (allocasStore.containsKey(inst)) allocasStore.get(inst).forEach(this::remove);
-        LLVM.LLVMInstructionEraseFromParent(inst);
+    @Override
+    public Set<LLVMAnalysisManager.Analysis> preservedAnalyses() {
+        return EnumSet.of(LLVMAnalysisManager.Analysis.CFG, LLVMAnalysisManager.Analysis.DOM_TREE);
     }
 
     @Override
-    public boolean run() {
+    public void analyze() {
         prepare();
+        for (int id = 0; id < allInstructions.size(); ++id) markUsage(id);
+    }
 
-        allInstructions.forEach(this::markUsage);
-        boolean flag = false;
-        for (var variable : variables) {
-            if (used.contains(variable)) continue;
-            flag = true;
-            remove(variable);
-        }
-        return flag;
+    @Override
+    public boolean transform() {
+        var unused = (BitSet) variables.clone();
+        unused.andNot(used);
+        if (unused.isEmpty()) return false;
+
+        for (int id = 0; id < storeTarget.length; ++id)
+            if (storeTarget[id] != -1 && unused.get(storeTarget[id]))
+                LLVM.LLVMInstructionEraseFromParent(allInstructions.get(id));
+        for (var id = unused.nextSetBit(0); id >= 0; id = unused.nextSetBit(id + 1))
+            LLVM.LLVMInstructionEraseFromParent(allInstructions.get(id));
+        return true;
     }
-}
\ No newline at end of file
+}
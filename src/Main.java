@@ -5,8 +5,48 @@ import java.io.File;
 import java.io.IOException;
 
 public class Main {
+    private enum Output {
+        IR, ASSEMBLY, OBJECT, VERIFY, SIMULATE
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) System.exit(1);
+        if (args.length < 2) System.exit(1);
+        int parallelism = 1;
+        var mode = LLVMPassManager.Mode.DENSE;
+        boolean ssa = false;
+        var output = Output.IR;
+        boolean report = false;
+        var allocation = LLVMCompiler.RegisterAllocation.LINEAR_SCAN;
+        var profile = RISCVTargetProfile.GENERIC;
+        int branchPenalty = RISCVSimulator.DEFAULT_BRANCH_PENALTY;
+        long instructionLimit = RISCVSimulator.DEFAULT_INSTRUCTION_LIMIT;
+        for (int i = 2; i < args.length; ++i) {
+            if (args[i].equals("-j") && i + 1 < args.length) parallelism = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-sccp")) mode = LLVMPassManager.Mode.SPARSE;
+            else if (args[i].equals("-ssa")) {
+                ssa = true;
+                mode = LLVMPassManager.Mode.SPARSE;
+            }
+            else if (args[i].equals("-S")) output = Output.ASSEMBLY;
+            else if (args[i].equals("-c")) output = Output.OBJECT;
+            else if (args[i].equals("-verify")) output = Output.VERIFY;
+            else if (args[i].equals("-run")) output = Output.SIMULATE;
+            else if (args[i].equals("-report")) report = true;
+            else if (args[i].equals("-ra") && i + 1 < args.length) {
+                var name = args[++i];
+                if (name.equals("linear")) allocation = LLVMCompiler.RegisterAllocation.LINEAR_SCAN;
+                else if (name.equals("coloring")) allocation = LLVMCompiler.RegisterAllocation.GRAPH_COLORING;
+                else System.exit(1);
+            }
+            else if (args[i].equals("-target") && i + 1 < args.length) {
+                profile = getTargetProfile(args[++i]);
+                if (profile == null) System.exit(1);
+            }
+            else if (args[i].equals("-branch-penalty") && i + 1 < args.length)
+                branchPenalty = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-limit") && i + 1 < args.length) instructionLimit = Long.parseLong(args[++i]);
+            else System.exit(1);
+        }
         var flag = new boolean[1];
         var parser = getSysYParser(CharStreams.fromFileName(args[0]), flag);
         var checker = new SysYSemanticsChecker();
@@ -15,11 +55,44 @@ public class Main {
         program.accept(checker);
         if (checker.hasError) return;
 
-        var translator = new SysYTranslator();
+        var translator = new SysYTranslator(ssa);
         program.accept(translator);
         var module = translator.module;
-        new LLVMPassManager(module).run();
-        module.dump(Option.of(new File(args[1])));
+        new LLVMPassManager(module, parallelism, mode).run();
+        if (output == Output.IR) {
+            module.dump(Option.of(new File(args[1])));
+            return;
+        }
+
+        var compiler = new LLVMCompiler(module, new File(args[1]), allocation, profile);
+        int exitCode = 0;
+        switch (output) {
+            case ASSEMBLY:
+                compiler.compile();
+                break;
+            case OBJECT:
+                compiler.compileObject();
+                break;
+            case VERIFY:
+                if (compiler.verifyObject(System.err) != 0) exitCode = 1;
+                break;
+            case SIMULATE:
+                var simulator = new RISCVSimulator(profile, branchPenalty, instructionLimit);
+                exitCode = compiler.simulate(simulator, System.in, System.out);
+                simulator.report(System.err);
+                break;
+        }
+        if (report) {
+            compiler.reportFrames(System.err);
+            compiler.reportPeephole(System.err);
+        }
+        System.exit(exitCode);
+    }
+
+    private static RISCVTargetProfile getTargetProfile(String name) {
+        for (var profile : RISCVTargetProfile.values())
+            if (profile.name().toLowerCase().replace('_', '-').equals(name)) return profile;
+        return null;
     }
 
     private static SysYParser getSysYParser(CharStream stream, boolean[] flag) {
@@ -0,0 +1,154 @@
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+
+public final class PersistentIntMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final int shift;
+    private final Node root;
+    private int hash;
+
+    private PersistentIntMap(int shift, Node root) {
+        this.shift = shift;
+        this.root = root;
+    }
+
+    public static <V> PersistentIntMap<V> empty(int capacity) {
+        int shift = 0;
+        var maxKey = Math.max(capacity, 1) - 1;
+        while (shift + BITS < Integer.SIZE && maxKey >>> (shift + BITS) != 0) shift += BITS;
+        return new PersistentIntMap<>(shift, null);
+    }
+
+    private static int index(int key, int shift) {
+        return (key >>> shift) & MASK;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        var node = root;
+        for (int s = shift; node != null; s -= BITS) {
+            var bit = 1 << index(key, s);
+            if ((node.bitmap & bit) == 0) return null;
+            var slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (s == 0) return (V) slot;
+            node = (Node) slot;
+        }
+        return null;
+    }
+
+    private static Object put(Node node, int s, int key, Object value) {
+        var bit = 1 << index(key, s);
+        var bitmap = node == null ? 0 : node.bitmap;
+        var pos = Integer.bitCount(bitmap & (bit - 1));
+        var present = (bitmap & bit) != 0;
+        var old = present ? node.slots[pos] : null;
+        var child = s == 0 ? value : put((Node) old, s - BITS, key, value);
+        if (present && (s == 0 ? Objects.equals(old, child) : old == child)) return node;
+
+        Object[] slots;
+        if (present) {
+            slots = node.slots.clone();
+        } else {
+            var count = Integer.bitCount(bitmap);
+            slots = new Object[count + 1];
+            if (node != null) {
+                System.arraycopy(node.slots, 0, slots, 0, pos);
+                System.arraycopy(node.slots, pos, slots, pos + 1, count - pos);
+            }
+        }
+        slots[pos] = child;
+        return new Node(bitmap | bit, slots);
+    }
+
+    public PersistentIntMap<V> put(int key, V value) {
+        var newRoot = (Node) put(root, shift, key, value);
+        if (newRoot == root) return this;
+        return new PersistentIntMap<>(shift, newRoot);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Object merge(Object a, Object b, int s, BinaryOperator<V> op) {
+        if (a == b || b == null) return a;
+        if (a == null) return b;
+        if (s < 0) {
+            var merged = op.apply((V) a, (V) b);
+            if (Objects.equals(merged, a)) return a;
+            if (Objects.equals(merged, b)) return b;
+            return merged;
+        }
+
+        var nodeA = (Node) a;
+        var nodeB = (Node) b;
+        var bitmap = nodeA.bitmap | nodeB.bitmap;
+        var slots = new Object[Integer.bitCount(bitmap)];
+        boolean sameAsA = bitmap == nodeA.bitmap;
+        boolean sameAsB = bitmap == nodeB.bitmap;
+        for (int rest = bitmap, pos = 0; rest != 0; rest &= rest - 1, ++pos) {
+            var bit = rest & -rest;
+            var childA = (nodeA.bitmap & bit) == 0 ? null : nodeA.slots[Integer.bitCount(nodeA.bitmap & (bit - 1))];
+            var childB = (nodeB.bitmap & bit) == 0 ? null : nodeB.slots[Integer.bitCount(nodeB.bitmap & (bit - 1))];
+            var child = merge(childA, childB, s - BITS, op);
+            slots[pos] = child;
+            sameAsA &= child == childA;
+            sameAsB &= child == childB;
+        }
+        if (sameAsA) return nodeA;
+        if (sameAsB) return nodeB;
+        return new Node(bitmap, slots);
+    }
+
+    public PersistentIntMap<V> merge(PersistentIntMap<V> other, BinaryOperator<V> op) {
+        if (shift != other.shift) throw new IllegalArgumentException("Merge maps of different capacity");
+        var newRoot = (Node) merge(root, other.root, shift, op);
+        if (newRoot == root) return this;
+        if (newRoot == other.root) return other;
+        return new PersistentIntMap<>(shift, newRoot);
+    }
+
+    private static boolean equals(Object a, Object b, int s) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (s < 0) return a.equals(b);
+        var nodeA = (Node) a;
+        var nodeB = (Node) b;
+        if (nodeA.bitmap != nodeB.bitmap) return false;
+        for (int i = 0; i < nodeA.slots.length; ++i)
+            if (!equals(nodeA.slots[i], nodeB.slots[i], s - BITS)) return false;
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PersistentIntMap)) return false;
+        var other = (PersistentIntMap<?>) o;
+        return shift == other.shift && equals(root, other.root, shift);
+    }
+
+    private static int hashCode(Object node, int s) {
+        if (node == null) return 0;
+        if (s < 0) return node.hashCode();
+        var n = (Node) node;
+        int result = n.bitmap;
+        for (var slot : n.slots) result = result * 31 + hashCode(slot, s - BITS);
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        if (hash == 0) hash = hashCode(root, shift);
+        return hash;
+    }
+
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+}
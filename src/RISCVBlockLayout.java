@@ -0,0 +1,34 @@
+import java.util.ArrayList;
+
+public class RISCVBlockLayout {
+    public static int[] compute(LLVMAnalysisManager.CFG cfg, LLVMAnalysisManager.DomTree domTree, int entry) {
+        var blockCount = cfg.blocks.size();
+        var placed = new boolean[blockCount];
+        var order = new ArrayList<Integer>();
+        var seeds = new ArrayList<Integer>();
+        seeds.add(entry);
+        for (var bb : domTree.reversePostOrder) seeds.add(bb);
+        for (int bb = 0; bb < blockCount; ++bb) seeds.add(bb);
+
+        for (var seed : seeds) {
+            for (var bb = seed; bb != -1 && !placed[bb]; bb = likelySuccessor(cfg, domTree, bb, placed)) {
+                placed[bb] = true;
+                order.add(bb);
+            }
+        }
+
+        var result = new int[blockCount];
+        for (int i = 0; i < blockCount; ++i) result[i] = order.get(i);
+        return result;
+    }
+
+    private static int likelySuccessor(LLVMAnalysisManager.CFG cfg, LLVMAnalysisManager.DomTree domTree, int bb,
+            boolean[] placed) {
+        int best = -1;
+        for (var succ : cfg.successors[bb]) {
+            if (placed[succ]) continue;
+            if (best == -1 || domTree.loopDepth[succ] > domTree.loopDepth[best]) best = succ;
+        }
+        return best;
+    }
+}
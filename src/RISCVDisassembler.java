@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class RISCVDisassembler {
+    private static final String[] R_NAMES = new String[]{"add", "sll", "slt", "sltu", "xor", "srl", "or", "and"};
+    private static final String[] M_NAMES = new String[]{"mul", "mulh", null, null, "div", null, "rem", null};
+    private static final String[] I_NAMES = new String[]{"addi", "slli", "slti", "sltiu", "xori", "srli", "ori",
+            "andi"};
+    private static final String[] B_NAMES = new String[]{"beq", "bne", null, null, "blt", "bge", "bltu", "bgeu"};
+
+    private final RISCVObject object;
+    private final TreeMap<Integer, TreeSet<String>> textLabels = new TreeMap<>();
+    private final TreeMap<Integer, TreeSet<String>> dataLabels = new TreeMap<>();
+    private final HashMap<RISCVObject.Symbol, Integer> anchors = new HashMap<>();
+    private final HashMap<Integer, RISCVObject.Relocation> relocations = new HashMap<>();
+
+    public RISCVDisassembler(RISCVObject object) {
+        this.object = object;
+        for (var symbol : object.symbols) {
+            if (symbol.section == RISCVObject.TEXT_SECTION && symbol.name.startsWith(".L"))
+                anchors.put(symbol, symbol.offset);
+            else if (symbol.section == RISCVObject.TEXT_SECTION)
+                textLabels.computeIfAbsent(symbol.offset, k -> new TreeSet<>()).add(symbol.name);
+            else if (symbol.section == RISCVObject.DATA_SECTION)
+                dataLabels.computeIfAbsent(symbol.offset, k -> new TreeSet<>()).add(symbol.name);
+        }
+        for (var relocation : object.relocations) relocations.put(relocation.offset, relocation);
+    }
+
+    private static String name(int register) {
+        return RISCVPrinter.REGISTER_NAMES[register];
+    }
+
+    private String label(int offset) {
+        var labels = textLabels.get(offset);
+        return labels == null ? ".+" + offset : labels.first();
+    }
+
+    private String relocation(int offset, int type) {
+        var relocation = relocations.get(offset);
+        if (relocation == null || relocation.type != type) return null;
+        if (type != RISCVObject.R_RISCV_PCREL_LO12_I) return relocation.symbol.name;
+        var anchor = anchors.get(relocation.symbol);
+        return anchor == null ? null : relocation(anchor, RISCVObject.R_RISCV_PCREL_HI20);
+    }
+
+    public static int branchOffset(int word) {
+        return (word >> 31) << 12 | (word >> 7 & 1) << 11 | (word >> 25 & 0x3F) << 5 | (word >> 8 & 0xF) << 1;
+    }
+
+    public static int jumpOffset(int word) {
+        return (word >> 31) << 20 | (word >> 12 & 0xFF) << 12 | (word >> 20 & 1) << 11 | (word >> 21 & 0x3FF) << 1;
+    }
+
+    private String decode(int word, int pc) {
+        var rd = name(word >> 7 & 0x1F);
+        var funct3 = word >> 12 & 7;
+        var rs1 = name(word >> 15 & 0x1F);
+        var rs2 = name(word >> 20 & 0x1F);
+        var imm = word >> 20;
+        switch (word & 0x7F) {
+            case 0x33:
+                var funct7 = word >>> 25;
+                String mnemonic = null;
+                if (funct7 == 0) mnemonic = R_NAMES[funct3];
+                else if (funct7 == 1) mnemonic = M_NAMES[funct3];
+                else if (funct7 == 0x20 && funct3 == 0) mnemonic = "sub";
+                else if (funct7 == 0x20 && funct3 == 5) mnemonic = "sra";
+                return mnemonic == null ? null : mnemonic + " " + rd + ", " + rs1 + ", " + rs2;
+            case 0x13:
+                var symbol = relocation(pc, RISCVObject.R_RISCV_PCREL_LO12_I);
+                if (symbol != null) return "addi " + rd + ", " + rs1 + ", %pcrel_lo(" + symbol + ")";
+                if (funct3 == 1 || funct3 == 5)
+                    return (funct3 == 1 ? "slli" : (imm & 0x400) != 0 ? "srai" : "srli") + " " + rd + ", " + rs1
+                            + ", " + (imm & 0x1F);
+                return I_NAMES[funct3] + " " + rd + ", " + rs1 + ", " + imm;
+            case 0x03:
+                return funct3 == 2 ? "lw " + rd + ", " + imm + "(" + rs1 + ")" : null;
+            case 0x23:
+                return funct3 == 2 ? "sw " + rs2 + ", " + (word >> 25 << 5 | word >> 7 & 0x1F) + "(" + rs1 + ")" : null;
+            case 0x63:
+                return B_NAMES[funct3] == null ? null
+                        : B_NAMES[funct3] + " " + rs1 + ", " + rs2 + ", " + label(pc + branchOffset(word));
+            case 0x6F:
+                return "jal " + rd + ", " + label(pc + jumpOffset(word));
+            case 0x67:
+                return funct3 == 0 ? "jalr " + rd + ", " + imm + "(" + rs1 + ")" : null;
+            case 0x37:
+                return "lui " + rd + ", " + (word >>> 12);
+            case 0x17:
+                var call = relocation(pc, RISCVObject.R_RISCV_CALL_PLT);
+                if (call != null) return "auipc " + rd + ", %call(" + call + ")";
+                var hi = relocation(pc, RISCVObject.R_RISCV_PCREL_HI20);
+                return "auipc " + rd + ", " + (hi != null ? "%pcrel_hi(" + hi + ")" : word >>> 12);
+            case 0x73:
+                return word == 0x73 ? "ecall" : null;
+            default:
+                return null;
+        }
+    }
+
+    public List<String> disassemble() {
+        var result = new ArrayList<String>();
+        var textSize = object.textOffset();
+        for (int pc = 0; pc < textSize; pc += 4) {
+            var labels = textLabels.get(pc);
+            if (labels != null)
+                for (var label : labels) result.add(label + ":");
+            var word = object.textWord(pc);
+            var next = pc + 4 < textSize ? object.textWord(pc + 4) : 0;
+            if ((word & 0x7F) == 0x63 && branchOffset(word) == 8 && (next & 0xFFF) == 0x6F
+                    && !RISCVEncoder.fitsImmediate(4 + jumpOffset(next), 13) && !textLabels.containsKey(pc + 4)) {
+                var inverted = word ^ 1 << 12;
+                result.add(B_NAMES[inverted >> 12 & 7] + " " + name(word >> 15 & 0x1F) + ", " + name(word >> 20 & 0x1F)
+                        + ", " + label(pc + 4 + jumpOffset(next)));
+                pc += 4;
+                continue;
+            }
+            var line = decode(word, pc);
+            result.add(line == null ? String.format(".word 0x%08x", word) : line);
+        }
+        for (int offset = 0; offset < object.dataOffset(); offset += 4) {
+            var labels = dataLabels.get(offset);
+            if (labels != null)
+                for (var label : labels) result.add(label + ":");
+            result.add(".word " + object.dataWord(offset));
+        }
+        return result;
+    }
+
+    public static List<String> disassemble(Path path) throws IOException {
+        return new RISCVDisassembler(RISCVObject.read(path)).disassemble();
+    }
+
+    private static void canonicalize(String line, List<String> out) {
+        var space = line.indexOf(' ');
+        var mnemonic = space == -1 ? line : line.substring(0, space);
+        var ops = space == -1 ? new String[0] : line.substring(space + 1).split(", ");
+        switch (mnemonic) {
+            case "mv":
+                out.add("addi " + ops[0] + ", " + ops[1] + ", 0");
+                break;
+            case "seqz":
+                out.add("sltiu " + ops[0] + ", " + ops[1] + ", 1");
+                break;
+            case "snez":
+                out.add("sltu " + ops[0] + ", zero, " + ops[1]);
+                break;
+            case "li":
+                var value = Integer.parseInt(ops[1]);
+                if (RISCVEncoder.fitsImmediate(value, 12)) {
+                    out.add("addi " + ops[0] + ", zero, " + value);
+                } else {
+                    out.add("lui " + ops[0] + ", " + RISCVEncoder.highPart(value));
+                    if (RISCVEncoder.lowPart(value) != 0)
+                        out.add("addi " + ops[0] + ", " + ops[0] + ", " + RISCVEncoder.lowPart(value));
+                }
+                break;
+            case "la":
+                out.add("auipc " + ops[0] + ", %pcrel_hi(" + ops[1] + ")");
+                out.add("addi " + ops[0] + ", " + ops[0] + ", %pcrel_lo(" + ops[1] + ")");
+                break;
+            case "bgt":
+            case "ble":
+            case "bgtu":
+            case "bleu":
+                var base = mnemonic.startsWith("bgt") ? "blt" : "bge";
+                out.add(base + (mnemonic.endsWith("u") ? "u " : " ") + ops[1] + ", " + ops[0] + ", " + ops[2]);
+                break;
+            case "beqz":
+            case "bnez":
+                out.add(mnemonic.substring(0, 3) + " " + ops[0] + ", zero, " + ops[1]);
+                break;
+            case "j":
+                out.add("jal zero, " + ops[0]);
+                break;
+            case "call":
+                out.add("auipc ra, %call(" + ops[0] + ")");
+                out.add("jalr ra, 0(ra)");
+                break;
+            case "ret":
+                out.add("jalr zero, 0(ra)");
+                break;
+            case "nop":
+                out.add("addi zero, zero, 0");
+                break;
+            case ".zero":
+                for (int i = 0; i < Integer.parseInt(ops[0]) / 4; ++i) out.add(".word 0");
+                break;
+            default:
+                out.add(line);
+        }
+    }
+
+    public static List<String> canonicalize(String assembly) {
+        var text = new ArrayList<String>();
+        var data = new ArrayList<String>();
+        var representative = new HashMap<String, String>();
+        var pending = new TreeSet<String>();
+        var out = text;
+        for (var line : assembly.split("\n")) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith(".globl")) continue;
+            if (line.equals(".text") || line.equals(".data")) {
+                out = line.equals(".text") ? text : data;
+                continue;
+            }
+            if (line.endsWith(":")) {
+                pending.add(line.substring(0, line.length() - 1));
+                continue;
+            }
+            for (var label : pending) {
+                representative.put(label, pending.first());
+                out.add(label + ":");
+            }
+            pending.clear();
+            canonicalize(line, out);
+        }
+        for (int i = 0; i < text.size(); ++i) {
+            var line = text.get(i);
+            if (!line.startsWith("b") && !line.startsWith("jal ")) continue;
+            var comma = line.lastIndexOf(", ");
+            var label = representative.get(line.substring(comma + 2));
+            if (label != null) text.set(i, line.substring(0, comma + 2) + label);
+        }
+        text.addAll(data);
+        return text;
+    }
+
+    public static int compare(List<String> expected, List<String> actual, PrintStream out) {
+        int mismatches = 0;
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); ++i) {
+            var e = i < expected.size() ? expected.get(i) : "<end>";
+            var a = i < actual.size() ? actual.get(i) : "<end>";
+            if (e.equals(a)) continue;
+            if (mismatches++ < 16) out.printf("verify: line %d: expected \"%s\", got \"%s\"\n", i + 1, e, a);
+        }
+        out.printf("verify: %d lines, %d mismatches\n", expected.size(), mismatches);
+        return mismatches;
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class RISCVEncoder {
+    private static final int OP = 0x33;
+    private static final int OP_IMM = 0x13;
+    private static final int LOAD = 0x03;
+    private static final int STORE = 0x23;
+    private static final int BRANCH = 0x63;
+    private static final int JAL = 0x6F;
+    private static final int JALR = 0x67;
+    private static final int LUI = 0x37;
+    private static final int AUIPC = 0x17;
+    private static final int SYSTEM = 0x73;
+
+    private final RISCVObject object = new RISCVObject();
+    private int pcrelCount;
+
+    public RISCVObject object() {
+        return object;
+    }
+
+    public static boolean fitsImmediate(int value, int bits) {
+        return value >= -(1 << bits - 1) && value < 1 << bits - 1;
+    }
+
+    public static int lowPart(int value) {
+        return value << 20 >> 20;
+    }
+
+    public static int highPart(int value) {
+        return (value - lowPart(value)) >>> 12;
+    }
+
+    private static int r(int funct7, int rs2, int rs1, int funct3, int rd) {
+        return funct7 << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | OP;
+    }
+
+    private static int i(int imm, int rs1, int funct3, int rd, int opcode) {
+        return imm << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    private static int s(int imm, int rs2, int rs1) {
+        return (imm >> 5 & 0x7F) << 25 | rs2 << 20 | rs1 << 15 | 2 << 12 | (imm & 0x1F) << 7 | STORE;
+    }
+
+    private static int b(int imm, int rs2, int rs1, int funct3) {
+        return (imm >> 12 & 1) << 31 | (imm >> 5 & 0x3F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12
+                | (imm >> 1 & 0xF) << 8 | (imm >> 11 & 1) << 7 | BRANCH;
+    }
+
+    private static int u(int imm, int rd, int opcode) {
+        return imm << 12 | rd << 7 | opcode;
+    }
+
+    private static int j(int imm, int rd) {
+        return (imm >> 20 & 1) << 31 | (imm >> 1 & 0x3FF) << 21 | (imm >> 11 & 1) << 20 | (imm >> 12 & 0xFF) << 12
+                | rd << 7 | JAL;
+    }
+
+    private static int register(RISCVMachineBlock block, int index, int operand) {
+        var value = block.operand(index, operand);
+        if (RISCVOperand.kind(value) != RISCVOperand.Kind.REGISTER)
+            throw new IllegalArgumentException("Unallocated operand: " + RISCVOperand.kind(value));
+        return RISCVOperand.value(value);
+    }
+
+    private static int immediate(RISCVMachineBlock block, int index, int operand, int bits) {
+        var value = RISCVOperand.value(block.operand(index, operand));
+        if (!fitsImmediate(value, bits)) throw new IllegalArgumentException("Immediate out of range: " + value);
+        return value;
+    }
+
+    private static int funct7(RISCVOpcode opcode) {
+        switch (opcode) {
+            case SUB:
+            case SRA:
+            case SRAI:
+                return 0x20;
+            case MUL:
+            case MULH:
+            case DIV:
+            case REM:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static int funct3(RISCVOpcode opcode) {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case ADDI:
+            case BEQ:
+            case BEQZ:
+                return 0;
+            case SLL:
+            case MULH:
+            case SLLI:
+            case BNE:
+            case BNEZ:
+                return 1;
+            case SLT:
+            case SLTI:
+                return 2;
+            case SLTU:
+            case SLTIU:
+                return 3;
+            case XOR:
+            case DIV:
+            case XORI:
+            case BLT:
+            case BGT:
+                return 4;
+            case SRL:
+            case SRA:
+            case SRLI:
+            case SRAI:
+            case BGE:
+            case BLE:
+                return 5;
+            case OR:
+            case REM:
+            case ORI:
+            case BLTU:
+            case BGTU:
+                return 6;
+            case AND:
+            case ANDI:
+            case BGEU:
+            case BLEU:
+                return 7;
+            default:
+                throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+    }
+
+    private static boolean isSwapped(RISCVOpcode opcode) {
+        return opcode == RISCVOpcode.BGT || opcode == RISCVOpcode.BLE || opcode == RISCVOpcode.BGTU
+                || opcode == RISCVOpcode.BLEU;
+    }
+
+    private static int size(RISCVMachineBlock block, int index, boolean far) {
+        switch (block.opcode(index)) {
+            case LI:
+                var value = RISCVOperand.value(block.operand(index, 1));
+                return fitsImmediate(value, 12) || lowPart(value) == 0 ? 1 : 2;
+            case LA:
+            case CALL:
+                return 2;
+            default:
+                return far ? 2 : 1;
+        }
+    }
+
+    private static long target(RISCVMachineBlock block, int index) {
+        var opcode = block.opcode(index);
+        return block.operand(index, opcode.format == RISCVOpcode.Format.BRANCH ? 2 : opcode.format.operandCount - 1);
+    }
+
+    private static boolean isConditional(RISCVOpcode opcode) {
+        return opcode.format == RISCVOpcode.Format.BRANCH || opcode.format == RISCVOpcode.Format.BRANCH_ZERO;
+    }
+
+    private HashMap<String, Integer> layout(RISCVMachineFunction function, List<boolean[]> far) {
+        var labels = new HashMap<String, Integer>();
+        for (var block : function.blocks) far.add(new boolean[block.size()]);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int offset = 0;
+            for (int b = 0; b < function.blocks.size(); ++b) {
+                var block = function.blocks.get(b);
+                labels.put(block.label, offset);
+                for (int k = 0; k < block.size(); ++k) offset += 4 * size(block, k, far.get(b)[k]);
+            }
+            offset = 0;
+            for (int b = 0; b < function.blocks.size(); ++b) {
+                var block = function.blocks.get(b);
+                for (int k = 0; k < block.size(); ++k) {
+                    if (isConditional(block.opcode(k)) && !far.get(b)[k]) {
+                        var label = labels.get(function.symbolName(target(block, k)));
+                        if (label == null) throw new IllegalArgumentException("Unknown label: "
+                                + function.symbolName(target(block, k)));
+                        if (!fitsImmediate(label - offset, 13)) {
+                            far.get(b)[k] = true;
+                            changed = true;
+                        }
+                    }
+                    offset += 4 * size(block, k, far.get(b)[k]);
+                }
+            }
+        }
+        return labels;
+    }
+
+    private void emitBranch(RISCVOpcode opcode, int rs1, int rs2, int distance, boolean far) {
+        if (isSwapped(opcode)) {
+            var t = rs1;
+            rs1 = rs2;
+            rs2 = t;
+        }
+        if (!far) {
+            object.emitText(b(distance, rs2, rs1, funct3(opcode)));
+            return;
+        }
+        object.emitText(b(8, rs2, rs1, funct3(opcode) ^ 1));
+        object.emitText(j(distance - 4, RISCVOperand.ZERO));
+    }
+
+    private void emitPcrel(RISCVMachineFunction function, RISCVMachineBlock block, int k) {
+        var rd = register(block, k, 0);
+        var offset = object.textOffset();
+        var anchor = object.define(".Lpcrel_hi" + pcrelCount++, RISCVObject.TEXT_SECTION, offset,
+                RISCVObject.STT_NOTYPE, false);
+        object.relocate(offset, RISCVObject.R_RISCV_PCREL_HI20,
+                object.symbol(function.symbolName(block.operand(k, 1))));
+        object.emitText(u(0, rd, AUIPC));
+        object.relocate(offset + 4, RISCVObject.R_RISCV_PCREL_LO12_I, anchor);
+        object.emitText(i(0, rd, 0, rd, OP_IMM));
+    }
+
+    private void emit(RISCVMachineFunction function, RISCVMachineBlock block, int k, int distance, boolean far) {
+        var opcode = block.opcode(k);
+        switch (opcode.format) {
+            case R:
+                object.emitText(r(funct7(opcode), register(block, k, 2), register(block, k, 1), funct3(opcode),
+                        register(block, k, 0)));
+                break;
+            case I:
+                var shift = opcode == RISCVOpcode.SLLI || opcode == RISCVOpcode.SRLI || opcode == RISCVOpcode.SRAI;
+                var imm = shift ? RISCVOperand.value(block.operand(k, 2)) & 0x1F | funct7(opcode) << 5
+                        : immediate(block, k, 2, 12);
+                object.emitText(i(imm, register(block, k, 1), funct3(opcode), register(block, k, 0), OP_IMM));
+                break;
+            case UNARY:
+                var rd = register(block, k, 0);
+                var rs = register(block, k, 1);
+                if (opcode == RISCVOpcode.MV) object.emitText(i(0, rs, 0, rd, OP_IMM));
+                else if (opcode == RISCVOpcode.SEQZ) object.emitText(i(1, rs, 3, rd, OP_IMM));
+                else object.emitText(r(0, rs, RISCVOperand.ZERO, 3, rd));
+                break;
+            case LOAD_IMMEDIATE:
+                var value = RISCVOperand.value(block.operand(k, 1));
+                var target = register(block, k, 0);
+                if (fitsImmediate(value, 12)) {
+                    object.emitText(i(value, RISCVOperand.ZERO, 0, target, OP_IMM));
+                } else {
+                    object.emitText(u(highPart(value), target, LUI));
+                    if (lowPart(value) != 0) object.emitText(i(lowPart(value), target, 0, target, OP_IMM));
+                }
+                break;
+            case LOAD_ADDRESS:
+                emitPcrel(function, block, k);
+                break;
+            case LOAD:
+                object.emitText(i(immediate(block, k, 1, 12), register(block, k, 2), 2, register(block, k, 0),
+                        LOAD));
+                break;
+            case STORE:
+                object.emitText(s(immediate(block, k, 1, 12), register(block, k, 0), register(block, k, 2)));
+                break;
+            case BRANCH:
+                emitBranch(opcode, register(block, k, 0), register(block, k, 1), distance, far);
+                break;
+            case BRANCH_ZERO:
+                emitBranch(opcode, register(block, k, 0), RISCVOperand.ZERO, distance, far);
+                break;
+            case JUMP:
+                if (!fitsImmediate(distance, 21)) throw new IllegalArgumentException("Jump out of range: " + distance);
+                object.emitText(j(distance, RISCVOperand.ZERO));
+                break;
+            case CALL:
+                object.relocate(object.textOffset(), RISCVObject.R_RISCV_CALL_PLT,
+                        object.symbol(function.symbolName(block.operand(k, 0))));
+                object.emitText(u(0, RISCVOperand.RA, AUIPC));
+                object.emitText(i(0, RISCVOperand.RA, 0, RISCVOperand.RA, JALR));
+                break;
+            case NONE:
+                if (opcode == RISCVOpcode.RET) object.emitText(i(0, RISCVOperand.RA, 0, RISCVOperand.ZERO, JALR));
+                else if (opcode == RISCVOpcode.ECALL) object.emitText(SYSTEM);
+                else object.emitText(i(0, RISCVOperand.ZERO, 0, RISCVOperand.ZERO, OP_IMM));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        }
+    }
+
+    public void encode(RISCVMachineFunction function) {
+        var far = new ArrayList<boolean[]>();
+        var labels = layout(function, far);
+        var base = object.textOffset();
+        var symbol = object.define(function.name, RISCVObject.TEXT_SECTION, base, RISCVObject.STT_FUNC, true);
+        for (int b = 0; b < function.blocks.size(); ++b) {
+            var block = function.blocks.get(b);
+            if (!block.label.equals(function.name))
+                object.define(block.label, RISCVObject.TEXT_SECTION, object.textOffset(), RISCVObject.STT_NOTYPE,
+                        false);
+            for (int k = 0; k < block.size(); ++k) {
+                var opcode = block.opcode(k);
+                int distance = 0;
+                if (isConditional(opcode) || opcode == RISCVOpcode.J)
+                    distance = base + labels.get(function.symbolName(target(block, k))) - object.textOffset();
+                emit(function, block, k, distance, far.get(b)[k]);
+            }
+        }
+        symbol.size = object.textOffset() - base;
+    }
+
+    public void data(String name, List<Integer> words) {
+        object.define(name, RISCVObject.DATA_SECTION, object.dataOffset(), RISCVObject.STT_OBJECT, false).size =
+                words.size() * 4;
+        for (var word : words) object.emitData(word);
+    }
+}
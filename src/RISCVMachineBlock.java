@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+public class RISCVMachineBlock {
+    private static final RISCVOpcode[] OPCODES = RISCVOpcode.values();
+    private static final int STRIDE = 3;
+
+    public final String label;
+    private byte[] opcodes = new byte[8];
+    private long[] operands = new long[8 * STRIDE];
+    private int size;
+
+    public RISCVMachineBlock(String label) {
+        this.label = label;
+    }
+
+    private void reserve(int capacity) {
+        if (capacity <= opcodes.length) return;
+        var newCapacity = Math.max(capacity, opcodes.length * 2);
+        opcodes = Arrays.copyOf(opcodes, newCapacity);
+        operands = Arrays.copyOf(operands, newCapacity * STRIDE);
+    }
+
+    public void add(RISCVOpcode opcode, long... ops) {
+        reserve(size + 1);
+        set(size++, opcode, ops);
+    }
+
+    public void set(int index, RISCVOpcode opcode, long... ops) {
+        if (ops.length != opcode.format.operandCount)
+            throw new IllegalArgumentException("Wrong operand count for " + opcode.mnemonic() + ": " + ops.length);
+        opcodes[index] = (byte) opcode.ordinal();
+        System.arraycopy(ops, 0, operands, index * STRIDE, ops.length);
+    }
+
+    public void append(RISCVMachineBlock other) {
+        reserve(size + other.size);
+        System.arraycopy(other.opcodes, 0, opcodes, size, other.size);
+        System.arraycopy(other.operands, 0, operands, size * STRIDE, other.size * STRIDE);
+        size += other.size;
+    }
+
+    public void remove(int index) {
+        System.arraycopy(opcodes, index + 1, opcodes, index, size - index - 1);
+        System.arraycopy(operands, (index + 1) * STRIDE, operands, index * STRIDE, (size - index - 1) * STRIDE);
+        --size;
+    }
+
+    public void permute(int begin, int[] order) {
+        var oldOpcodes = Arrays.copyOfRange(opcodes, begin, begin + order.length);
+        var oldOperands = Arrays.copyOfRange(operands, begin * STRIDE, (begin + order.length) * STRIDE);
+        for (int i = 0; i < order.length; ++i) {
+            opcodes[begin + i] = oldOpcodes[order[i]];
+            System.arraycopy(oldOperands, order[i] * STRIDE, operands, (begin + i) * STRIDE, STRIDE);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public RISCVOpcode opcode(int index) {
+        return OPCODES[opcodes[index]];
+    }
+
+    public long operand(int index, int operand) {
+        return operands[index * STRIDE + operand];
+    }
+
+    public void setOperand(int index, int operand, long value) {
+        operands[index * STRIDE + operand] = value;
+    }
+}
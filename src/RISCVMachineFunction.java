@@ -0,0 +1,30 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class RISCVMachineFunction {
+    public final String name;
+    public final ArrayList<RISCVMachineBlock> blocks = new ArrayList<>();
+    private final ArrayList<String> symbols = new ArrayList<>();
+    private final HashMap<String, Integer> symbolIds = new HashMap<>();
+
+    public RISCVMachineFunction(String name) {
+        this.name = name;
+    }
+
+    public RISCVMachineBlock addBlock(String label) {
+        var block = new RISCVMachineBlock(label);
+        blocks.add(block);
+        return block;
+    }
+
+    public long symbol(String name) {
+        return RISCVOperand.symbol(symbolIds.computeIfAbsent(name, k -> {
+            symbols.add(k);
+            return symbols.size() - 1;
+        }));
+    }
+
+    public String symbolName(long operand) {
+        return symbols.get(RISCVOperand.value(operand));
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class RISCVObject {
+    public static final int R_RISCV_CALL_PLT = 19;
+    public static final int R_RISCV_PCREL_HI20 = 23;
+    public static final int R_RISCV_PCREL_LO12_I = 24;
+
+    public static final int STT_NOTYPE = 0;
+    public static final int STT_OBJECT = 1;
+    public static final int STT_FUNC = 2;
+
+    private static final int EM_RISCV = 243;
+    private static final int ELF_HEADER_SIZE = 52;
+    private static final int SECTION_HEADER_SIZE = 40;
+    private static final int SYMBOL_SIZE = 16;
+    private static final int RELA_SIZE = 12;
+    private static final String[] SECTION_NAMES = new String[]{"", ".text", ".data", ".rela.text", ".symtab",
+            ".strtab", ".shstrtab"};
+    public static final int TEXT_SECTION = 1;
+    public static final int DATA_SECTION = 2;
+
+    public static class Symbol {
+        public final String name;
+        public int section;
+        public int offset;
+        public int size;
+        public int type;
+        public boolean global;
+
+        private Symbol(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Relocation {
+        public final int offset;
+        public final int type;
+        public final Symbol symbol;
+
+        private Relocation(int offset, int type, Symbol symbol) {
+            this.offset = offset;
+            this.type = type;
+            this.symbol = symbol;
+        }
+    }
+
+    private int[] text = new int[256];
+    private int textSize;
+    private int[] data = new int[64];
+    private int dataSize;
+    public final ArrayList<Symbol> symbols = new ArrayList<>();
+    private final HashMap<String, Symbol> symbolByName = new HashMap<>();
+    public final ArrayList<Relocation> relocations = new ArrayList<>();
+
+    private static int[] push(int[] buffer, int size, int value) {
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+        buffer[size] = value;
+        return buffer;
+    }
+
+    public int textOffset() {
+        return textSize * 4;
+    }
+
+    public int dataOffset() {
+        return dataSize * 4;
+    }
+
+    public int textWord(int offset) {
+        return text[offset / 4];
+    }
+
+    public int dataWord(int offset) {
+        return data[offset / 4];
+    }
+
+    public void emitText(int word) {
+        text = push(text, textSize++, word);
+    }
+
+    public void emitData(int word) {
+        data = push(data, dataSize++, word);
+    }
+
+    public Symbol lookup(String name) {
+        return symbolByName.get(name);
+    }
+
+    public Symbol symbol(String name) {
+        return symbolByName.computeIfAbsent(name, k -> {
+            var symbol = new Symbol(k);
+            symbols.add(symbol);
+            return symbol;
+        });
+    }
+
+    public Symbol define(String name, int section, int offset, int type, boolean global) {
+        var symbol = symbol(name);
+        if (symbol.section != 0) throw new IllegalArgumentException("Duplicate symbol: " + name);
+        symbol.section = section;
+        symbol.offset = offset;
+        symbol.type = type;
+        symbol.global = global;
+        return symbol;
+    }
+
+    public void relocate(int offset, int type, Symbol symbol) {
+        relocations.add(new Relocation(offset, type, symbol));
+    }
+
+    private static boolean isLocal(Symbol symbol) {
+        return symbol.section != 0 && !symbol.global;
+    }
+
+    public void write(Path path) throws IOException {
+        var ordered = new ArrayList<Symbol>();
+        for (var symbol : symbols)
+            if (isLocal(symbol)) ordered.add(symbol);
+        var firstGlobal = ordered.size() + 1;
+        for (var symbol : symbols)
+            if (!isLocal(symbol)) ordered.add(symbol);
+        var symbolIndex = new HashMap<Symbol, Integer>();
+        for (int i = 0; i < ordered.size(); ++i) symbolIndex.put(ordered.get(i), i + 1);
+
+        var strtab = new StringBuilder("\0");
+        var nameOffset = new int[ordered.size()];
+        for (int i = 0; i < ordered.size(); ++i) {
+            nameOffset[i] = strtab.length();
+            strtab.append(ordered.get(i).name).append('\0');
+        }
+        var shstrtab = new StringBuilder();
+        var sectionNameOffset = new int[SECTION_NAMES.length];
+        for (int i = 0; i < SECTION_NAMES.length; ++i) {
+            sectionNameOffset[i] = shstrtab.length();
+            shstrtab.append(SECTION_NAMES[i]).append('\0');
+        }
+        var strtabBytes = strtab.toString().getBytes(StandardCharsets.UTF_8);
+        var shstrtabBytes = shstrtab.toString().getBytes(StandardCharsets.UTF_8);
+
+        var offsets = new int[SECTION_NAMES.length];
+        var sizes = new int[]{0, textSize * 4, dataSize * 4, relocations.size() * RELA_SIZE,
+                (ordered.size() + 1) * SYMBOL_SIZE, strtabBytes.length, shstrtabBytes.length};
+        int position = ELF_HEADER_SIZE;
+        for (int i = 1; i < SECTION_NAMES.length; ++i) {
+            position = (position + 3) & ~3;
+            offsets[i] = position;
+            position += sizes[i];
+        }
+        var sectionHeaders = (position + 3) & ~3;
+        var buffer = ByteBuffer.allocate(sectionHeaders + SECTION_NAMES.length * SECTION_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(new byte[]{0x7f, 'E', 'L', 'F', 1, 1, 1, 0}).put(new byte[8]);
+        buffer.putShort((short) 1).putShort((short) EM_RISCV).putInt(1).putInt(0).putInt(0).putInt(sectionHeaders)
+                .putInt(0).putShort((short) ELF_HEADER_SIZE).putShort((short) 0).putShort((short) 0)
+                .putShort((short) SECTION_HEADER_SIZE).putShort((short) SECTION_NAMES.length)
+                .putShort((short) (SECTION_NAMES.length - 1));
+
+        buffer.position(offsets[1]);
+        for (int i = 0; i < textSize; ++i) buffer.putInt(text[i]);
+        buffer.position(offsets[2]);
+        for (int i = 0; i < dataSize; ++i) buffer.putInt(data[i]);
+        buffer.position(offsets[3]);
+        for (var relocation : relocations)
+            buffer.putInt(relocation.offset).putInt(symbolIndex.get(relocation.symbol) << 8 | relocation.type)
+                    .putInt(0);
+        buffer.position(offsets[4]).put(new byte[SYMBOL_SIZE]);
+        for (int i = 0; i < ordered.size(); ++i) {
+            var symbol = ordered.get(i);
+            buffer.putInt(nameOffset[i]).putInt(symbol.offset).putInt(symbol.size)
+                    .put((byte) ((isLocal(symbol) ? 0 : 1) << 4 | symbol.type)).put((byte) 0)
+                    .putShort((short) symbol.section);
+        }
+        buffer.position(offsets[5]).put(strtabBytes);
+        buffer.position(offsets[6]).put(shstrtabBytes);
+
+        var types = new int[]{0, 1, 1, 4, 2, 3, 3};
+        var flags = new int[]{0, 0x6, 0x3, 0x40, 0, 0, 0};
+        var links = new int[]{0, 0, 0, 4, 5, 0, 0};
+        var infos = new int[]{0, 0, 0, TEXT_SECTION, firstGlobal, 0, 0};
+        var alignments = new int[]{0, 4, 4, 4, 4, 1, 1};
+        var entrySizes = new int[]{0, 0, 0, RELA_SIZE, SYMBOL_SIZE, 0, 0};
+        buffer.position(sectionHeaders);
+        for (int i = 0; i < SECTION_NAMES.length; ++i)
+            buffer.putInt(i == 0 ? 0 : sectionNameOffset[i]).putInt(types[i]).putInt(flags[i]).putInt(0)
+                    .putInt(offsets[i]).putInt(sizes[i]).putInt(links[i]).putInt(infos[i]).putInt(alignments[i])
+                    .putInt(entrySizes[i]);
+
+        buffer.flip();
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    private static String string(ByteBuffer buffer, int offset) {
+        int end = offset;
+        while (buffer.get(end) != 0) ++end;
+        var bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; ++i) bytes[i] = buffer.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static RISCVObject read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+        }
+        if (buffer.getInt(0) != 0x464C457F || buffer.get(4) != 1 || buffer.get(5) != 1 || buffer.getShort(16) != 1
+                || buffer.getShort(18) != EM_RISCV)
+            throw new IllegalArgumentException("Not a RV32 relocatable object: " + path);
+        var sectionHeaders = buffer.getInt(32);
+        var names = buffer.getInt(sectionHeaders + SECTION_HEADER_SIZE * buffer.getShort(50) + 16);
+        var sections = new HashMap<String, Integer>();
+        for (int i = 0; i < buffer.getShort(48); ++i)
+            sections.put(string(buffer, names + buffer.getInt(sectionHeaders + SECTION_HEADER_SIZE * i)), i);
+        var sectionIndex = new HashMap<Integer, Integer>();
+        for (int i = 1; i < SECTION_NAMES.length; ++i) {
+            if (!sections.containsKey(SECTION_NAMES[i]))
+                throw new IllegalArgumentException("Missing section: " + SECTION_NAMES[i]);
+            sectionIndex.put(sections.get(SECTION_NAMES[i]), i);
+        }
+        var headers = new int[SECTION_NAMES.length][];
+        for (var entry : sectionIndex.entrySet()) {
+            var header = sectionHeaders + SECTION_HEADER_SIZE * entry.getKey();
+            headers[entry.getValue()] = new int[]{buffer.getInt(header + 16), buffer.getInt(header + 20)};
+        }
+
+        var result = new RISCVObject();
+        for (int offset = 0; offset < headers[TEXT_SECTION][1]; offset += 4)
+            result.emitText(buffer.getInt(headers[TEXT_SECTION][0] + offset));
+        for (int offset = 0; offset < headers[DATA_SECTION][1]; offset += 4)
+            result.emitData(buffer.getInt(headers[DATA_SECTION][0] + offset));
+        var symbols = new ArrayList<Symbol>();
+        for (int entry = headers[4][0]; entry < headers[4][0] + headers[4][1]; entry += SYMBOL_SIZE) {
+            if (entry == headers[4][0]) {
+                symbols.add(null);
+                continue;
+            }
+            var symbol = result.symbol(string(buffer, headers[5][0] + buffer.getInt(entry)));
+            symbol.offset = buffer.getInt(entry + 4);
+            symbol.size = buffer.getInt(entry + 8);
+            symbol.type = buffer.get(entry + 12) & 0xF;
+            symbol.global = (buffer.get(entry + 12) >> 4) != 0;
+            symbol.section = sectionIndex.getOrDefault((int) buffer.getShort(entry + 14), 0);
+            symbols.add(symbol);
+        }
+        for (int entry = headers[3][0]; entry < headers[3][0] + headers[3][1]; entry += RELA_SIZE) {
+            var info = buffer.getInt(entry + 4);
+            result.relocate(buffer.getInt(entry), info & 0xFF, symbols.get(info >>> 8));
+        }
+        return result;
+    }
+}
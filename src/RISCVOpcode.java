@@ -0,0 +1,51 @@
+public enum RISCVOpcode {
+    ADD(Format.R), SUB(Format.R), MUL(Format.R), MULH(Format.R), DIV(Format.R), REM(Format.R), AND(Format.R),
+    OR(Format.R), XOR(Format.R), SLL(Format.R), SRL(Format.R), SRA(Format.R), SLT(Format.R), SLTU(Format.R),
+    ADDI(Format.I), ANDI(Format.I), ORI(Format.I), XORI(Format.I), SLTI(Format.I), SLTIU(Format.I),
+    SLLI(Format.I), SRLI(Format.I), SRAI(Format.I),
+    MV(Format.UNARY), SEQZ(Format.UNARY), SNEZ(Format.UNARY),
+    LI(Format.LOAD_IMMEDIATE), LA(Format.LOAD_ADDRESS), LW(Format.LOAD), SW(Format.STORE),
+    BEQ(Format.BRANCH), BNE(Format.BRANCH), BLT(Format.BRANCH), BGE(Format.BRANCH), BLTU(Format.BRANCH),
+    BGEU(Format.BRANCH), BGT(Format.BRANCH), BLE(Format.BRANCH), BGTU(Format.BRANCH), BLEU(Format.BRANCH),
+    BEQZ(Format.BRANCH_ZERO), BNEZ(Format.BRANCH_ZERO), J(Format.JUMP), CALL(Format.CALL), RET(Format.NONE),
+    ECALL(Format.NONE), NOP(Format.NONE);
+
+    public enum Format {
+        R(3), I(3), UNARY(2), LOAD_IMMEDIATE(2), LOAD_ADDRESS(2), LOAD(3), STORE(3), BRANCH(3), BRANCH_ZERO(2),
+        JUMP(1), CALL(1), NONE(0);
+
+        public final int operandCount;
+
+        Format(int operandCount) {
+            this.operandCount = operandCount;
+        }
+    }
+
+    public final Format format;
+
+    RISCVOpcode(Format format) {
+        this.format = format;
+    }
+
+    public String mnemonic() {
+        return name().toLowerCase();
+    }
+
+    public boolean hasDefinition() {
+        switch (format) {
+            case R:
+            case I:
+            case UNARY:
+            case LOAD_IMMEDIATE:
+            case LOAD_ADDRESS:
+            case LOAD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isBranch() {
+        return format == Format.BRANCH || format == Format.BRANCH_ZERO || format == Format.JUMP || this == RET;
+    }
+}
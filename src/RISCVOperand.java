@@ -0,0 +1,41 @@
+public class RISCVOperand {
+    public enum Kind {
+        REGISTER, IMMEDIATE, SYMBOL
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    public static final int ZERO = 0;
+    public static final int RA = 1;
+    public static final int SP = 2;
+    public static final int A0 = 10;
+    public static final int A7 = 17;
+
+    private static long make(Kind kind, int value) {
+        return (long) kind.ordinal() << 32 | value & 0xFFFFFFFFL;
+    }
+
+    public static long register(int register) {
+        return make(Kind.REGISTER, register);
+    }
+
+    public static long immediate(int value) {
+        return make(Kind.IMMEDIATE, value);
+    }
+
+    public static long symbol(int id) {
+        return make(Kind.SYMBOL, id);
+    }
+
+    public static Kind kind(long operand) {
+        return KINDS[(int) (operand >>> 32)];
+    }
+
+    public static int value(long operand) {
+        return (int) operand;
+    }
+
+    public static boolean isRegister(long operand) {
+        return kind(operand) == Kind.REGISTER;
+    }
+}
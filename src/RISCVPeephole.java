@@ -0,0 +1,108 @@
+import java.io.PrintStream;
+import java.util.EnumMap;
+
+public class RISCVPeephole {
+    public enum Rule {
+        SELF_MOVE, NOP, JUMP_TO_NEXT, STORE_LOAD, LOAD_STORE, DEAD_STORE
+    }
+
+    private final EnumMap<Rule, Integer> removed = new EnumMap<>(Rule.class);
+    private final EnumMap<Rule, Integer> rewritten = new EnumMap<>(Rule.class);
+
+    public RISCVPeephole() {
+        for (var rule : Rule.values()) {
+            removed.put(rule, 0);
+            rewritten.put(rule, 0);
+        }
+    }
+
+    private void count(Rule rule) {
+        removed.merge(rule, 1, Integer::sum);
+    }
+
+    private void countRewrite(Rule rule) {
+        rewritten.merge(rule, 1, Integer::sum);
+    }
+
+    private static boolean sameAddress(RISCVMachineBlock block, int a, int b) {
+        return block.operand(a, 1) == block.operand(b, 1) && block.operand(a, 2) == block.operand(b, 2);
+    }
+
+    private boolean runBlock(RISCVMachineBlock block) {
+        boolean changed = false;
+        for (int i = 0; i < block.size(); ) {
+            var opcode = block.opcode(i);
+            if (opcode == RISCVOpcode.MV && block.operand(i, 0) == block.operand(i, 1)) {
+                block.remove(i);
+                count(Rule.SELF_MOVE);
+                changed = true;
+                continue;
+            }
+            if (opcode == RISCVOpcode.NOP) {
+                block.remove(i);
+                count(Rule.NOP);
+                changed = true;
+                continue;
+            }
+            if (i == 0) {
+                ++i;
+                continue;
+            }
+
+            var last = block.opcode(i - 1);
+            if (opcode == RISCVOpcode.LW && last == RISCVOpcode.SW && sameAddress(block, i, i - 1)) {
+                if (block.operand(i, 0) == block.operand(i - 1, 0)) {
+                    block.remove(i);
+                    count(Rule.STORE_LOAD);
+                } else {
+                    block.set(i, RISCVOpcode.MV, block.operand(i, 0), block.operand(i - 1, 0));
+                    countRewrite(Rule.STORE_LOAD);
+                }
+                changed = true;
+            } else if (opcode == RISCVOpcode.SW && last == RISCVOpcode.LW && sameAddress(block, i, i - 1)
+                    && block.operand(i, 0) == block.operand(i - 1, 0)
+                    && block.operand(i - 1, 0) != block.operand(i - 1, 2)) {
+                block.remove(i);
+                count(Rule.LOAD_STORE);
+                changed = true;
+            } else if (opcode == RISCVOpcode.SW && last == RISCVOpcode.SW && sameAddress(block, i, i - 1)) {
+                block.remove(i - 1);
+                count(Rule.DEAD_STORE);
+                changed = true;
+            } else ++i;
+        }
+        return changed;
+    }
+
+    public void run(RISCVMachineFunction function) {
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int b = 0; b < function.blocks.size(); ++b) {
+                var block = function.blocks.get(b);
+                if (runBlock(block)) changed = true;
+                if (b + 1 == function.blocks.size() || block.size() == 0) continue;
+                var last = block.size() - 1;
+                if (block.opcode(last) == RISCVOpcode.J
+                        && function.symbolName(block.operand(last, 0)).equals(function.blocks.get(b + 1).label)) {
+                    block.remove(last);
+                    count(Rule.JUMP_TO_NEXT);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public int removed(Rule rule) {
+        return removed.get(rule);
+    }
+
+    public int rewritten(Rule rule) {
+        return rewritten.get(rule);
+    }
+
+    public void report(PrintStream out) {
+        for (var rule : Rule.values())
+            out.printf("peephole %s: %d removed, %d rewritten\n", rule.name().toLowerCase(), removed.get(rule),
+                    rewritten.get(rule));
+    }
+}
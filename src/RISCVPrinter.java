@@ -0,0 +1,50 @@
+import java.io.IOException;
+
+public class RISCVPrinter {
+    public static final String[] REGISTER_NAMES = new String[]{"zero", "ra", "sp", "gp", "tp", "t0", "t1", "t2", "s0",
+            "s1", "a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7", "s2", "s3", "s4", "s5", "s6", "s7", "s8", "s9", "s10",
+            "s11", "t3", "t4", "t5", "t6"};
+
+    private final Appendable out;
+
+    public RISCVPrinter(Appendable out) {
+        this.out = out;
+    }
+
+    private String operand(RISCVMachineFunction function, long operand) {
+        switch (RISCVOperand.kind(operand)) {
+            case REGISTER:
+                return REGISTER_NAMES[RISCVOperand.value(operand)];
+            case IMMEDIATE:
+                return Integer.toString(RISCVOperand.value(operand));
+            case SYMBOL:
+                return function.symbolName(operand);
+            default:
+                throw new IllegalArgumentException("Unknown operand: " + operand);
+        }
+    }
+
+    public void printInstruction(RISCVMachineFunction function, RISCVMachineBlock block, int index)
+            throws IOException {
+        var opcode = block.opcode(index);
+        out.append(opcode.mnemonic());
+        var format = opcode.format;
+        if (format == RISCVOpcode.Format.LOAD || format == RISCVOpcode.Format.STORE) {
+            out.append(' ').append(operand(function, block.operand(index, 0))).append(", ")
+                    .append(operand(function, block.operand(index, 1))).append('(')
+                    .append(operand(function, block.operand(index, 2))).append(')');
+        } else {
+            for (int i = 0; i < format.operandCount; ++i)
+                out.append(i == 0 ? " " : ", ").append(operand(function, block.operand(index, i)));
+        }
+        out.append('\n');
+    }
+
+    public void print(RISCVMachineFunction function) throws IOException {
+        out.append(".text\n.globl ").append(function.name).append('\n');
+        for (var block : function.blocks) {
+            out.append(block.label).append(":\n");
+            for (int i = 0; i < block.size(); ++i) printInstruction(function, block, i);
+        }
+    }
+}
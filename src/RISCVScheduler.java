@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class RISCVScheduler {
+    private static final long[] NO_REGISTERS = new long[0];
+    private static final int WINDOW = 64;
+
+    private final RISCVTargetProfile profile;
+
+    public RISCVScheduler(RISCVTargetProfile profile) {
+        this.profile = profile;
+    }
+
+    private static boolean isRegister(long operand) {
+        return RISCVOperand.isRegister(operand) && RISCVOperand.value(operand) != RISCVOperand.ZERO;
+    }
+
+    private static long def(RISCVMachineBlock block, int i) {
+        if (!block.opcode(i).hasDefinition()) return -1;
+        var operand = block.operand(i, 0);
+        return isRegister(operand) ? operand : -1;
+    }
+
+    private static long[] uses(RISCVMachineBlock block, int i) {
+        int[] indices;
+        switch (block.opcode(i).format) {
+            case R:
+                indices = new int[]{1, 2};
+                break;
+            case BRANCH:
+                indices = new int[]{0, 1};
+                break;
+            case I:
+            case UNARY:
+                indices = new int[]{1};
+                break;
+            case LOAD:
+                indices = new int[]{2};
+                break;
+            case STORE:
+                indices = new int[]{0, 2};
+                break;
+            case BRANCH_ZERO:
+                indices = new int[]{0};
+                break;
+            default:
+                return NO_REGISTERS;
+        }
+        var result = new long[indices.length];
+        int count = 0;
+        for (var index : indices) {
+            var operand = block.operand(i, index);
+            if (isRegister(operand)) result[count++] = operand;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static boolean isBarrier(RISCVOpcode opcode) {
+        return opcode.isBranch() || opcode == RISCVOpcode.CALL || opcode == RISCVOpcode.ECALL
+                || opcode == RISCVOpcode.NOP;
+    }
+
+    private static int stackOffset(RISCVMachineBlock block, int i) {
+        if (block.operand(i, 2) != RISCVOperand.register(RISCVOperand.SP)) return Integer.MIN_VALUE;
+        return RISCVOperand.value(block.operand(i, 1));
+    }
+
+    private static void edge(ArrayList<ArrayList<int[]>> successors, int[] predCount, int from, int to, int delay) {
+        if (from == -1 || from == to) return;
+        successors.get(from).add(new int[]{to, delay});
+        ++predCount[to];
+    }
+
+    private void schedule(RISCVMachineBlock block, int begin, int end) {
+        var n = end - begin;
+        if (n < 2) return;
+        var successors = new ArrayList<ArrayList<int[]>>();
+        var predCount = new int[n];
+        for (int i = 0; i < n; ++i) successors.add(new ArrayList<>());
+
+        var lastDef = new HashMap<Long, Integer>();
+        var readers = new HashMap<Long, ArrayList<Integer>>();
+        var stackStores = new HashMap<Integer, Integer>();
+        var stackLoads = new HashMap<Integer, ArrayList<Integer>>();
+        int unknownStore = -1;
+        var unknownLoads = new ArrayList<Integer>();
+        for (int j = 0; j < n; ++j) {
+            var opcode = block.opcode(begin + j);
+            for (var use : uses(block, begin + j)) {
+                var def = lastDef.getOrDefault(use, -1);
+                if (def != -1) edge(successors, predCount, def, j, profile.latency(block.opcode(begin + def)));
+                readers.computeIfAbsent(use, k -> new ArrayList<>()).add(j);
+            }
+            var def = def(block, begin + j);
+            if (def != -1) {
+                edge(successors, predCount, lastDef.getOrDefault(def, -1), j, 1);
+                var previous = readers.put(def, new ArrayList<>());
+                if (previous != null)
+                    for (var reader : previous) edge(successors, predCount, reader, j, 0);
+                lastDef.put(def, j);
+            }
+
+            if (opcode != RISCVOpcode.LW && opcode != RISCVOpcode.SW) continue;
+            var offset = stackOffset(block, begin + j);
+            if (opcode == RISCVOpcode.LW) {
+                edge(successors, predCount, unknownStore, j, 1);
+                if (offset != Integer.MIN_VALUE) {
+                    edge(successors, predCount, stackStores.getOrDefault(offset, -1), j, 1);
+                    stackLoads.computeIfAbsent(offset, k -> new ArrayList<>()).add(j);
+                } else {
+                    for (var store : stackStores.values()) edge(successors, predCount, store, j, 1);
+                    unknownLoads.add(j);
+                }
+                continue;
+            }
+            edge(successors, predCount, unknownStore, j, 1);
+            for (var load : unknownLoads) edge(successors, predCount, load, j, 0);
+            if (offset != Integer.MIN_VALUE) {
+                edge(successors, predCount, stackStores.getOrDefault(offset, -1), j, 1);
+                var loads = stackLoads.remove(offset);
+                if (loads != null)
+                    for (var load : loads) edge(successors, predCount, load, j, 0);
+                stackStores.put(offset, j);
+            } else {
+                for (var store : stackStores.values()) edge(successors, predCount, store, j, 1);
+                for (var loads : stackLoads.values())
+                    for (var load : loads) edge(successors, predCount, load, j, 0);
+                stackStores.clear();
+                stackLoads.clear();
+                unknownLoads.clear();
+                unknownStore = j;
+            }
+        }
+
+        var height = new int[n];
+        for (int i = n - 1; i >= 0; --i) {
+            height[i] = profile.latency(block.opcode(begin + i));
+            for (var edge : successors.get(i)) height[i] = Math.max(height[i], edge[1] + height[edge[0]]);
+        }
+
+        var earliest = new int[n];
+        var done = new boolean[n];
+        var order = new int[n];
+        int cycle = 0;
+        for (int placed = 0; placed < n; ++placed) {
+            int best = -1;
+            for (int i = 0; i < n; ++i) {
+                if (done[i] || predCount[i] != 0) continue;
+                if (best == -1) {
+                    best = i;
+                    continue;
+                }
+                var ready = earliest[i] <= cycle;
+                var bestReady = earliest[best] <= cycle;
+                if (ready != bestReady) {
+                    if (ready) best = i;
+                } else if (ready ? height[i] > height[best] : earliest[i] < earliest[best]) best = i;
+            }
+            cycle = Math.max(cycle, earliest[best]);
+            order[placed] = best;
+            done[best] = true;
+            for (var edge : successors.get(best)) {
+                --predCount[edge[0]];
+                earliest[edge[0]] = Math.max(earliest[edge[0]], cycle + edge[1]);
+            }
+            ++cycle;
+        }
+        block.permute(begin, order);
+    }
+
+    private void scheduleRegion(RISCVMachineBlock block, int begin, int end) {
+        for (int start = begin; start < end; start += WINDOW) schedule(block, start, Math.min(end, start + WINDOW));
+    }
+
+    public void run(RISCVMachineFunction function) {
+        for (var block : function.blocks) {
+            int begin = 0;
+            for (int i = 0; i < block.size(); ++i) {
+                if (!isBarrier(block.opcode(i))) continue;
+                scheduleRegion(block, begin, i);
+                begin = i + 1;
+            }
+            scheduleRegion(block, begin, block.size());
+        }
+    }
+}
@@ -0,0 +1,542 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class RISCVSimulator {
+    private static final int TEXT_BASE = 0x10000;
+    private static final int STACK_TOP = 0x7FFFF000;
+    private static final int STACK_SIZE = 8 << 20;
+    private static final int RUNTIME_BASE = 0xFFFF0000;
+    private static final int EXIT_ADDRESS = RUNTIME_BASE - 4;
+    private static final String[] RUNTIME = new String[]{"getint", "getch", "getarray", "putint", "putch", "putarray",
+            "starttime", "stoptime"};
+    private static final long MASK = 0xFFFFFFFFL;
+
+    public static final int DEFAULT_BRANCH_PENALTY = 2;
+    public static final long DEFAULT_INSTRUCTION_LIMIT = 1L << 34;
+
+    private enum Operation {
+        ADD, SUB, SLL, SLT, SLTU, XOR, SRL, SRA, OR, AND,
+        MUL(RISCVOpcode.MUL), MULH(RISCVOpcode.MUL), MULHSU(RISCVOpcode.MUL), MULHU(RISCVOpcode.MUL),
+        DIV(RISCVOpcode.DIV), DIVU(RISCVOpcode.DIV), REM(RISCVOpcode.DIV), REMU(RISCVOpcode.DIV),
+        ADDI, SLTI, SLTIU, XORI, ORI, ANDI, SLLI, SRLI, SRAI,
+        LB(RISCVOpcode.LW), LH(RISCVOpcode.LW), LW(RISCVOpcode.LW), LBU(RISCVOpcode.LW), LHU(RISCVOpcode.LW),
+        SB, SH, SW, BEQ, BNE, BLT, BGE, BLTU, BGEU, JAL, JALR, LUI, AUIPC, ECALL;
+
+        public final RISCVOpcode latencyClass;
+
+        Operation() {
+            this(RISCVOpcode.ADD);
+        }
+
+        Operation(RISCVOpcode latencyClass) {
+            this.latencyClass = latencyClass;
+        }
+    }
+
+    private static final Operation[] OP_OPERATIONS = new Operation[]{Operation.ADD, Operation.SLL, Operation.SLT,
+            Operation.SLTU, Operation.XOR, Operation.SRL, Operation.OR, Operation.AND};
+    private static final Operation[] M_OPERATIONS = new Operation[]{Operation.MUL, Operation.MULH, Operation.MULHSU,
+            Operation.MULHU, Operation.DIV, Operation.DIVU, Operation.REM, Operation.REMU};
+    private static final Operation[] OP_IMM_OPERATIONS = new Operation[]{Operation.ADDI, Operation.SLLI,
+            Operation.SLTI, Operation.SLTIU, Operation.XORI, Operation.SRLI, Operation.ORI, Operation.ANDI};
+    private static final Operation[] LOAD_OPERATIONS = new Operation[]{Operation.LB, Operation.LH, Operation.LW,
+            null, Operation.LBU, Operation.LHU, null, null};
+    private static final Operation[] STORE_OPERATIONS = new Operation[]{Operation.SB, Operation.SH, Operation.SW,
+            null, null, null, null, null};
+    private static final Operation[] BRANCH_OPERATIONS = new Operation[]{Operation.BEQ, Operation.BNE, null, null,
+            Operation.BLT, Operation.BGE, Operation.BLTU, Operation.BGEU};
+
+    private final RISCVTargetProfile profile;
+    private final int branchPenalty;
+    private final long instructionLimit;
+
+    private Operation[] operations;
+    private int[] rd;
+    private int[] rs1;
+    private int[] rs2;
+    private int[] imm;
+    private int dataBase;
+    private int[] data;
+    private final int[] stack = new int[STACK_SIZE / 4];
+    private final int[] registers = new int[32];
+    private final long[] ready = new long[32];
+    private PushbackInputStream in;
+    private OutputStream out;
+
+    private long instructions;
+    private long cycles;
+    private long loads;
+    private long stores;
+    private long branches;
+    private long taken;
+    private long jumps;
+    private long calls;
+    private long runtimeCalls;
+    private int exitCode;
+
+    public RISCVSimulator(RISCVTargetProfile profile) {
+        this(profile, DEFAULT_BRANCH_PENALTY, DEFAULT_INSTRUCTION_LIMIT);
+    }
+
+    public RISCVSimulator(RISCVTargetProfile profile, int branchPenalty, long instructionLimit) {
+        this.profile = profile;
+        this.branchPenalty = branchPenalty;
+        this.instructionLimit = instructionLimit;
+    }
+
+    private void decode(int index, int word) {
+        var funct3 = word >> 12 & 7;
+        var funct7 = word >>> 25;
+        Operation operation = null;
+        rd[index] = word >> 7 & 0x1F;
+        rs1[index] = word >> 15 & 0x1F;
+        rs2[index] = word >> 20 & 0x1F;
+        imm[index] = word >> 20;
+        switch (word & 0x7F) {
+            case 0x33:
+                if (funct7 == 0) operation = OP_OPERATIONS[funct3];
+                else if (funct7 == 1) operation = M_OPERATIONS[funct3];
+                else if (funct7 == 0x20 && funct3 == 0) operation = Operation.SUB;
+                else if (funct7 == 0x20 && funct3 == 5) operation = Operation.SRA;
+                break;
+            case 0x13:
+                operation = OP_IMM_OPERATIONS[funct3];
+                if (funct3 == 5 && (word & 0x40000000) != 0) operation = Operation.SRAI;
+                if (funct3 == 1 || funct3 == 5) imm[index] &= 0x1F;
+                rs2[index] = 0;
+                break;
+            case 0x03:
+                operation = LOAD_OPERATIONS[funct3];
+                rs2[index] = 0;
+                break;
+            case 0x23:
+                operation = STORE_OPERATIONS[funct3];
+                imm[index] = word >> 25 << 5 | word >> 7 & 0x1F;
+                rd[index] = 0;
+                break;
+            case 0x63:
+                operation = BRANCH_OPERATIONS[funct3];
+                imm[index] = RISCVDisassembler.branchOffset(word);
+                rd[index] = 0;
+                break;
+            case 0x6F:
+                operation = Operation.JAL;
+                imm[index] = RISCVDisassembler.jumpOffset(word);
+                rs1[index] = rs2[index] = 0;
+                break;
+            case 0x67:
+                if (funct3 == 0) operation = Operation.JALR;
+                rs2[index] = 0;
+                break;
+            case 0x37:
+            case 0x17:
+                operation = (word & 0x7F) == 0x37 ? Operation.LUI : Operation.AUIPC;
+                imm[index] = word & 0xFFFFF000;
+                rs1[index] = rs2[index] = 0;
+                break;
+            case 0x73:
+                if (word == 0x73) operation = Operation.ECALL;
+                rd[index] = rs1[index] = rs2[index] = 0;
+                break;
+        }
+        if (operation == null) throw new IllegalArgumentException(String.format("Illegal instruction: 0x%08x", word));
+        operations[index] = operation;
+    }
+
+    private int address(RISCVObject.Symbol symbol) {
+        switch (symbol.section) {
+            case RISCVObject.TEXT_SECTION:
+                return TEXT_BASE + symbol.offset;
+            case RISCVObject.DATA_SECTION:
+                return dataBase + symbol.offset;
+            default:
+                for (int i = 0; i < RUNTIME.length; ++i)
+                    if (RUNTIME[i].equals(symbol.name)) return RUNTIME_BASE + 4 * i;
+                throw new IllegalArgumentException("Undefined symbol: " + symbol.name);
+        }
+    }
+
+    private void link(RISCVObject object) {
+        var size = object.textOffset() / 4;
+        operations = new Operation[size];
+        rd = new int[size];
+        rs1 = new int[size];
+        rs2 = new int[size];
+        imm = new int[size];
+        for (int i = 0; i < size; ++i) decode(i, object.textWord(4 * i));
+
+        dataBase = TEXT_BASE + object.textOffset() + 0xFFF & ~0xFFF;
+        data = new int[object.dataOffset() / 4];
+        for (int i = 0; i < data.length; ++i) data[i] = object.dataWord(4 * i);
+
+        var pcrel = new HashMap<Integer, RISCVObject.Symbol>();
+        for (var relocation : object.relocations)
+            if (relocation.type == RISCVObject.R_RISCV_PCREL_HI20) pcrel.put(relocation.offset, relocation.symbol);
+        for (var relocation : object.relocations) {
+            var index = relocation.offset / 4;
+            int delta;
+            switch (relocation.type) {
+                case RISCVObject.R_RISCV_CALL_PLT:
+                    delta = address(relocation.symbol) - TEXT_BASE - relocation.offset;
+                    imm[index] = RISCVEncoder.highPart(delta) << 12;
+                    imm[index + 1] = RISCVEncoder.lowPart(delta);
+                    break;
+                case RISCVObject.R_RISCV_PCREL_HI20:
+                    delta = address(relocation.symbol) - TEXT_BASE - relocation.offset;
+                    imm[index] = RISCVEncoder.highPart(delta) << 12;
+                    break;
+                case RISCVObject.R_RISCV_PCREL_LO12_I:
+                    var anchor = relocation.symbol.offset;
+                    if (!pcrel.containsKey(anchor))
+                        throw new IllegalArgumentException("Unpaired relocation at " + relocation.offset);
+                    imm[index] = RISCVEncoder.lowPart(address(pcrel.get(anchor)) - TEXT_BASE - anchor);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown relocation: " + relocation.type);
+            }
+        }
+    }
+
+    private int[] segment(int address) {
+        if (address - dataBase >= 0 && address - dataBase < 4 * data.length) return data;
+        if (address - (STACK_TOP - STACK_SIZE) >= 0 && address < STACK_TOP) return stack;
+        throw new IllegalStateException(String.format("Invalid memory access: 0x%08x", address));
+    }
+
+    private int index(int address) {
+        return (address - (segment(address) == data ? dataBase : STACK_TOP - STACK_SIZE)) >>> 2;
+    }
+
+    private int loadWord(int address) {
+        if ((address & 3) != 0) throw new IllegalStateException(String.format("Misaligned load: 0x%08x", address));
+        return segment(address)[index(address)];
+    }
+
+    private void storeWord(int address, int value) {
+        if ((address & 3) != 0) throw new IllegalStateException(String.format("Misaligned store: 0x%08x", address));
+        segment(address)[index(address)] = value;
+    }
+
+    private int load(Operation operation, int address) {
+        var shift = 8 * (address & 3);
+        switch (operation) {
+            case LB:
+                return loadWord(address & ~3) << 24 - shift >> 24;
+            case LBU:
+                return loadWord(address & ~3) >>> shift & 0xFF;
+            case LH:
+            case LHU:
+                if ((address & 1) != 0)
+                    throw new IllegalStateException(String.format("Misaligned load: 0x%08x", address));
+                var half = loadWord(address & ~3) >>> shift & 0xFFFF;
+                return operation == Operation.LH ? (short) half : half;
+            default:
+                return loadWord(address);
+        }
+    }
+
+    private void store(Operation operation, int address, int value) {
+        var shift = 8 * (address & 3);
+        switch (operation) {
+            case SB:
+                var word = loadWord(address & ~3);
+                storeWord(address & ~3, word & ~(0xFF << shift) | (value & 0xFF) << shift);
+                break;
+            case SH:
+                if ((address & 1) != 0)
+                    throw new IllegalStateException(String.format("Misaligned store: 0x%08x", address));
+                word = loadWord(address & ~3);
+                storeWord(address & ~3, word & ~(0xFFFF << shift) | (value & 0xFFFF) << shift);
+                break;
+            default:
+                storeWord(address, value);
+        }
+    }
+
+    private int read() throws IOException {
+        return in.read();
+    }
+
+    private int readInt() throws IOException {
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) c = read();
+        var negative = c == '-';
+        if (negative) c = read();
+        if (c < '0' || c > '9') throw new IllegalStateException("Invalid integer input");
+        int result = 0;
+        for (; c >= '0' && c <= '9'; c = read()) result = result * 10 + (c - '0');
+        if (c != -1) in.unread(c);
+        return negative ? -result : result;
+    }
+
+    private void write(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void runtime(int function) throws IOException {
+        ++runtimeCalls;
+        var a0 = registers[RISCVOperand.A0];
+        var a1 = registers[RISCVOperand.A0 + 1];
+        switch (RUNTIME[function]) {
+            case "getint":
+                registers[RISCVOperand.A0] = readInt();
+                break;
+            case "getch":
+                registers[RISCVOperand.A0] = read();
+                break;
+            case "getarray":
+                var n = readInt();
+                for (int i = 0; i < n; ++i) storeWord(a0 + 4 * i, readInt());
+                registers[RISCVOperand.A0] = n;
+                break;
+            case "putint":
+                write(Integer.toString(a0));
+                break;
+            case "putch":
+                out.write(a0);
+                break;
+            case "putarray":
+                var line = new StringBuilder().append(a0).append(':');
+                for (int i = 0; i < a0; ++i) line.append(' ').append(loadWord(a1 + 4 * i));
+                write(line.append('\n').toString());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean syscall() throws IOException {
+        var a0 = registers[RISCVOperand.A0];
+        var a1 = registers[RISCVOperand.A0 + 1];
+        var a2 = registers[RISCVOperand.A0 + 2];
+        switch (registers[RISCVOperand.A7]) {
+            case 93:
+            case 94:
+                exitCode = a0;
+                return false;
+            case 63:
+                int count = 0;
+                if (a0 == 0) {
+                    for (int c; count < a2 && (c = read()) != -1; ++count) store(Operation.SB, a1 + count, c);
+                }
+                registers[RISCVOperand.A0] = a0 == 0 ? count : -1;
+                return true;
+            case 64:
+                if (a0 != 1 && a0 != 2) {
+                    registers[RISCVOperand.A0] = -1;
+                    return true;
+                }
+                for (int i = 0; i < a2; ++i) out.write(load(Operation.LBU, a1 + i));
+                registers[RISCVOperand.A0] = a2;
+                return true;
+            default:
+                throw new IllegalStateException("Unsupported syscall: " + registers[RISCVOperand.A7]);
+        }
+    }
+
+    private static int divide(Operation operation, int a, int b) {
+        switch (operation) {
+            case DIV:
+                return b == 0 ? -1 : a / b;
+            case DIVU:
+                return b == 0 ? -1 : Integer.divideUnsigned(a, b);
+            case REM:
+                return b == 0 ? a : a % b;
+            default:
+                return b == 0 ? a : Integer.remainderUnsigned(a, b);
+        }
+    }
+
+    private static boolean condition(Operation operation, int a, int b) {
+        switch (operation) {
+            case BEQ:
+                return a == b;
+            case BNE:
+                return a != b;
+            case BLT:
+                return a < b;
+            case BGE:
+                return a >= b;
+            case BLTU:
+                return Integer.compareUnsigned(a, b) < 0;
+            default:
+                return Integer.compareUnsigned(a, b) >= 0;
+        }
+    }
+
+    private static int compute(Operation operation, int a, int b) {
+        switch (operation) {
+            case ADD:
+            case ADDI:
+                return a + b;
+            case SUB:
+                return a - b;
+            case SLL:
+            case SLLI:
+                return a << b;
+            case SLT:
+            case SLTI:
+                return a < b ? 1 : 0;
+            case SLTU:
+            case SLTIU:
+                return Integer.compareUnsigned(a, b) < 0 ? 1 : 0;
+            case XOR:
+            case XORI:
+                return a ^ b;
+            case SRL:
+            case SRLI:
+                return a >>> b;
+            case SRA:
+            case SRAI:
+                return a >> b;
+            case OR:
+            case ORI:
+                return a | b;
+            case AND:
+            case ANDI:
+                return a & b;
+            case MUL:
+                return a * b;
+            case MULH:
+                return (int) ((long) a * b >> 32);
+            case MULHSU:
+                return (int) ((long) a * (b & MASK) >> 32);
+            case MULHU:
+                return (int) ((a & MASK) * (b & MASK) >>> 32);
+            default:
+                return divide(operation, a, b);
+        }
+    }
+
+    private void reset() {
+        instructions = cycles = loads = stores = branches = taken = jumps = calls = runtimeCalls = 0;
+        exitCode = 0;
+        Arrays.fill(registers, 0);
+        Arrays.fill(ready, 0);
+        Arrays.fill(stack, 0);
+    }
+
+    public int run(RISCVObject object, InputStream in, OutputStream out) throws IOException {
+        link(object);
+        reset();
+        this.in = new PushbackInputStream(in);
+        this.out = out;
+        var main = object.lookup("main");
+        if (main == null || main.section != RISCVObject.TEXT_SECTION)
+            throw new IllegalArgumentException("Undefined symbol: main");
+        registers[RISCVOperand.SP] = STACK_TOP;
+        registers[RISCVOperand.RA] = EXIT_ADDRESS;
+        int pc = address(main);
+        while (true) {
+            if (pc == EXIT_ADDRESS) {
+                exitCode = registers[RISCVOperand.A0];
+                break;
+            }
+            if (pc - RUNTIME_BASE >= 0 && pc - RUNTIME_BASE < 4 * RUNTIME.length) {
+                runtime((pc - RUNTIME_BASE) / 4);
+                pc = registers[RISCVOperand.RA];
+                continue;
+            }
+            var index = (pc - TEXT_BASE) >> 2;
+            if ((pc & 3) != 0 || index < 0 || index >= operations.length)
+                throw new IllegalStateException(String.format("Invalid jump target: 0x%08x", pc));
+            if (++instructions > instructionLimit) throw new IllegalStateException("Instruction limit exceeded");
+
+            var operation = operations[index];
+            var s1 = rs1[index];
+            var s2 = rs2[index];
+            var issue = Math.max(cycles, Math.max(ready[s1], ready[s2]));
+            cycles = issue + 1;
+            var a = registers[s1];
+            var b = registers[s2];
+            var value = 0;
+            var next = pc + 4;
+            switch (operation) {
+                case ADDI:
+                case SLTI:
+                case SLTIU:
+                case XORI:
+                case ORI:
+                case ANDI:
+                case SLLI:
+                case SRLI:
+                case SRAI:
+                    value = compute(operation, a, imm[index]);
+                    break;
+                case LB:
+                case LH:
+                case LW:
+                case LBU:
+                case LHU:
+                    ++loads;
+                    value = load(operation, a + imm[index]);
+                    break;
+                case SB:
+                case SH:
+                case SW:
+                    ++stores;
+                    store(operation, a + imm[index], b);
+                    break;
+                case BEQ:
+                case BNE:
+                case BLT:
+                case BGE:
+                case BLTU:
+                case BGEU:
+                    ++branches;
+                    if (condition(operation, a, b)) {
+                        ++taken;
+                        cycles += branchPenalty;
+                        next = pc + imm[index];
+                    }
+                    break;
+                case JAL:
+                case JALR:
+                    ++jumps;
+                    if (rd[index] == RISCVOperand.RA) ++calls;
+                    cycles += branchPenalty;
+                    value = pc + 4;
+                    next = operation == Operation.JAL ? pc + imm[index] : a + imm[index] & ~1;
+                    break;
+                case LUI:
+                    value = imm[index];
+                    break;
+                case AUIPC:
+                    value = pc + imm[index];
+                    break;
+                case ECALL:
+                    if (!syscall()) return finish();
+                    break;
+                default:
+                    value = compute(operation, a, b);
+            }
+            var target = rd[index];
+            if (target != 0) {
+                registers[target] = value;
+                ready[target] = issue + profile.latency(operation.latencyClass);
+            }
+            pc = next;
+        }
+        return finish();
+    }
+
+    private int finish() throws IOException {
+        out.flush();
+        return exitCode;
+    }
+
+    public void report(PrintStream out) {
+        out.printf("simulate: exit code %d\n", exitCode);
+        out.printf("simulate: %d instructions, %d cycles, CPI %.2f\n", instructions, cycles,
+                instructions == 0 ? 0.0 : (double) cycles / instructions);
+        out.printf("simulate: %d loads, %d stores\n", loads, stores);
+        out.printf("simulate: %d branches, %d taken, %d jumps, %d calls, %d runtime calls\n", branches, taken, jumps,
+                calls, runtimeCalls);
+    }
+}
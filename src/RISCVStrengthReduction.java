@@ -0,0 +1,179 @@
+public class RISCVStrengthReduction {
+    private final RISCVTargetProfile profile;
+
+    public RISCVStrengthReduction(RISCVTargetProfile profile) {
+        this.profile = profile;
+    }
+
+    private static long reg(int register) {
+        return RISCVOperand.register(register);
+    }
+
+    private static long imm(int value) {
+        return RISCVOperand.immediate(value);
+    }
+
+    private void cheaper(RISCVMachineBlock block, RISCVMachineBlock reduced, RISCVMachineBlock fallback) {
+        if (reduced == null || profile.cost(reduced) >= profile.cost(fallback)) block.append(fallback);
+        else block.append(reduced);
+    }
+
+    private static RISCVMachineBlock hardware(RISCVOpcode opcode, int dest, int source, int scratch, int value) {
+        var result = new RISCVMachineBlock(null);
+        result.add(RISCVOpcode.LI, reg(scratch), imm(value));
+        result.add(opcode, reg(dest), reg(source), reg(scratch));
+        return result;
+    }
+
+    public void multiply(RISCVMachineBlock block, int dest, int source, int scratch, int multiplier) {
+        cheaper(block, shiftAdd(dest, source, dest == source ? scratch : dest, multiplier),
+                hardware(RISCVOpcode.MUL, dest, source, scratch, multiplier));
+    }
+
+    private static void checkScratch(int source, int t, int u) {
+        if (source == t || source == u)
+            throw new IllegalArgumentException("Scratch register aliases source: x" + source);
+    }
+
+    public void divide(RISCVMachineBlock block, int dest, int source, int t, int u, int divisor) {
+        checkScratch(source, t, u);
+        cheaper(block, reducedDivide(dest, source, t, u, divisor), hardware(RISCVOpcode.DIV, dest, source, u, divisor));
+    }
+
+    public void remainder(RISCVMachineBlock block, int dest, int source, int t, int u, int divisor) {
+        checkScratch(source, t, u);
+        var fallback = hardware(RISCVOpcode.REM, dest, source, u, divisor);
+        if (divisor == 0 || divisor == Integer.MIN_VALUE) {
+            block.append(fallback);
+            return;
+        }
+        var absolute = Math.abs(divisor);
+        if (absolute == 1) {
+            block.add(RISCVOpcode.MV, reg(dest), reg(RISCVOperand.ZERO));
+            return;
+        }
+
+        var reduced = reducedDivide(t, source, t, u, absolute);
+        if (reduced == null) {
+            block.append(fallback);
+            return;
+        }
+        multiply(reduced, u, t, u, absolute);
+        reduced.add(RISCVOpcode.SUB, reg(dest), reg(source), reg(u));
+        cheaper(block, reduced, fallback);
+    }
+
+    static int[] nonAdjacentForm(int value) {
+        var digits = new int[33];
+        var remaining = value & 0xFFFFFFFFL;
+        for (int i = 0; remaining != 0; ++i, remaining >>>= 1) {
+            if ((remaining & 1) == 0) continue;
+            digits[i] = 2 - (int) (remaining & 3);
+            remaining -= digits[i];
+        }
+        return digits;
+    }
+
+    private static RISCVMachineBlock shiftAdd(int dest, int source, int acc, int multiplier) {
+        var result = new RISCVMachineBlock(null);
+        if (multiplier == 0 || multiplier == 1) {
+            result.add(RISCVOpcode.MV, reg(dest), reg(multiplier == 0 ? RISCVOperand.ZERO : source));
+            return result;
+        }
+
+        var digits = nonAdjacentForm(multiplier);
+        var value = -1;
+        int previous = -1;
+        for (int i = 31; i >= 0; --i) {
+            if (digits[i] == 0) continue;
+            if (value == -1) {
+                value = source;
+                if (digits[i] < 0) {
+                    result.add(RISCVOpcode.SUB, reg(acc), reg(RISCVOperand.ZERO), reg(source));
+                    value = acc;
+                }
+            } else {
+                result.add(RISCVOpcode.SLLI, reg(acc), reg(value), imm(previous - i));
+                result.add(digits[i] > 0 ? RISCVOpcode.ADD : RISCVOpcode.SUB, reg(acc), reg(acc), reg(source));
+                value = acc;
+            }
+            previous = i;
+        }
+        if (previous > 0) result.add(RISCVOpcode.SLLI, reg(acc), reg(value), imm(previous));
+        result.setOperand(result.size() - 1, 0, reg(dest));
+        return result;
+    }
+
+    static int[] signedMagic(int divisor) {
+        final long mask = 0xFFFFFFFFL;
+        final long two31 = 0x80000000L;
+        var absolute = Math.abs((long) divisor);
+        var t = two31 + (divisor >>> 31);
+        var anc = t - 1 - t % absolute;
+        int p = 31;
+        var q1 = two31 / anc;
+        var r1 = two31 - q1 * anc;
+        var q2 = two31 / absolute;
+        var r2 = two31 - q2 * absolute;
+        long delta;
+        do {
+            ++p;
+            q1 = 2 * q1 & mask;
+            r1 = 2 * r1 & mask;
+            if (r1 >= anc) {
+                q1 = q1 + 1 & mask;
+                r1 = r1 - anc & mask;
+            }
+            q2 = 2 * q2 & mask;
+            r2 = 2 * r2 & mask;
+            if (r2 >= absolute) {
+                q2 = q2 + 1 & mask;
+                r2 = r2 - absolute & mask;
+            }
+            delta = absolute - r2 & mask;
+        } while (q1 < delta || q1 == delta && r1 == 0);
+
+        var magic = (int) (q2 + 1);
+        return new int[]{divisor < 0 ? -magic : magic, p - 32};
+    }
+
+    private static RISCVMachineBlock reducedDivide(int dest, int source, int t, int u, int divisor) {
+        if (divisor == 0 || divisor == Integer.MIN_VALUE) return null;
+        var result = new RISCVMachineBlock(null);
+        if (divisor == 1) {
+            result.add(RISCVOpcode.MV, reg(dest), reg(source));
+            return result;
+        }
+        if (divisor == -1) {
+            result.add(RISCVOpcode.SUB, reg(dest), reg(RISCVOperand.ZERO), reg(source));
+            return result;
+        }
+
+        var absolute = Math.abs(divisor);
+        if ((absolute & (absolute - 1)) == 0) {
+            var shift = Integer.numberOfTrailingZeros(absolute);
+            if (shift == 1) result.add(RISCVOpcode.SRLI, reg(t), reg(source), imm(31));
+            else {
+                result.add(RISCVOpcode.SRAI, reg(t), reg(source), imm(31));
+                result.add(RISCVOpcode.SRLI, reg(t), reg(t), imm(32 - shift));
+            }
+            result.add(RISCVOpcode.ADD, reg(t), reg(source), reg(t));
+            if (divisor > 0) result.add(RISCVOpcode.SRAI, reg(dest), reg(t), imm(shift));
+            else {
+                result.add(RISCVOpcode.SRAI, reg(t), reg(t), imm(shift));
+                result.add(RISCVOpcode.SUB, reg(dest), reg(RISCVOperand.ZERO), reg(t));
+            }
+            return result;
+        }
+
+        var magic = signedMagic(divisor);
+        result.add(RISCVOpcode.LI, reg(t), imm(magic[0]));
+        result.add(RISCVOpcode.MULH, reg(t), reg(source), reg(t));
+        if (divisor > 0 && magic[0] < 0) result.add(RISCVOpcode.ADD, reg(t), reg(t), reg(source));
+        if (divisor < 0 && magic[0] > 0) result.add(RISCVOpcode.SUB, reg(t), reg(t), reg(source));
+        if (magic[1] > 0) result.add(RISCVOpcode.SRAI, reg(t), reg(t), imm(magic[1]));
+        result.add(RISCVOpcode.SRLI, reg(u), reg(t), imm(31));
+        result.add(RISCVOpcode.ADD, reg(dest), reg(t), reg(u));
+        return result;
+    }
+}
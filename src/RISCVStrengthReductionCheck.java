@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class RISCVStrengthReductionCheck {
+    private static final int[] CONSTANTS = new int[]{0, 1, -1, 2, -2, 3, -3, 5, -5, 6, 7, -7, 10, 12, 25, 100, 641,
+            1000, -1000, 7919, -7919, 65537, 123456789, 0x55555555, 1 << 10, -(1 << 10), 1 << 30, -(1 << 30),
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1};
+    private static final int[] OPERANDS = new int[]{0, 1, -1, 2, -2, 7, -7, 100, -100, 4096, -4097, 123456789,
+            -987654321, Integer.MAX_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE, Integer.MIN_VALUE + 1};
+    private static final int[][] REGISTERS = new int[][]{{9, 18, 6, 7}, {6, 18, 6, 7}, {7, 18, 6, 7}, {18, 18, 6, 7}};
+    private static final int CODE = RISCVOperand.A0;
+    private static final int EXPECTED = 15;
+
+    private enum Operation {
+        MUL, DIV, REM
+    }
+
+    private static int expected(Operation operation, int x, int c) {
+        switch (operation) {
+            case MUL:
+                return x * c;
+            case DIV:
+                return c == 0 ? -1 : x / c;
+            default:
+                return c == 0 ? x : x % c;
+        }
+    }
+
+    private static void emit(RISCVStrengthReduction reduction, Operation operation, RISCVMachineBlock block,
+            int[] registers, int c) {
+        var dest = registers[0];
+        var source = registers[1];
+        switch (operation) {
+            case MUL:
+                reduction.multiply(block, dest, source, registers[3], c);
+                break;
+            case DIV:
+                reduction.divide(block, dest, source, registers[2], registers[3], c);
+                break;
+            default:
+                reduction.remainder(block, dest, source, registers[2], registers[3], c);
+        }
+    }
+
+    private static int run(RISCVSimulator simulator, RISCVStrengthReduction reduction, Operation operation,
+            int[] registers, int c) throws IOException {
+        var function = new RISCVMachineFunction("main");
+        var block = function.addBlock("main");
+        for (int i = 0; i < OPERANDS.length; ++i) {
+            block.add(RISCVOpcode.LI, RISCVOperand.register(registers[1]), RISCVOperand.immediate(OPERANDS[i]));
+            emit(reduction, operation, block, registers, c);
+            block.add(RISCVOpcode.LI, RISCVOperand.register(EXPECTED),
+                    RISCVOperand.immediate(expected(operation, OPERANDS[i], c)));
+            block.add(RISCVOpcode.LI, RISCVOperand.register(CODE), RISCVOperand.immediate(i + 1));
+            block.add(RISCVOpcode.BNE, RISCVOperand.register(registers[0]), RISCVOperand.register(EXPECTED),
+                    function.symbol("main_Exit"));
+        }
+        block.add(RISCVOpcode.LI, RISCVOperand.register(CODE), RISCVOperand.immediate(0));
+        var exit = function.addBlock("main_Exit");
+        exit.add(RISCVOpcode.LI, RISCVOperand.register(RISCVOperand.A7), RISCVOperand.immediate(93));
+        exit.add(RISCVOpcode.ECALL);
+
+        var encoder = new RISCVEncoder();
+        encoder.encode(function);
+        return simulator.run(encoder.object(), InputStream.nullInputStream(), OutputStream.nullOutputStream());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int checks = 0;
+        int failures = 0;
+        for (var profile : RISCVTargetProfile.values()) {
+            var reduction = new RISCVStrengthReduction(profile);
+            var simulator = new RISCVSimulator(profile);
+            for (var operation : Operation.values())
+                for (var registers : REGISTERS)
+                    for (var c : CONSTANTS) {
+                        var code = run(simulator, reduction, operation, registers, c);
+                        checks += OPERANDS.length;
+                        if (code == 0) continue;
+                        ++failures;
+                        System.out.printf("%s %s x%d = x%d %s %d: wrong for x = %d\n", profile, operation, registers[0],
+                                registers[1], operation.name().toLowerCase(), c, OPERANDS[code - 1]);
+                    }
+        }
+        for (var operation : new Operation[]{Operation.DIV, Operation.REM}) {
+            try {
+                emit(new RISCVStrengthReduction(RISCVTargetProfile.GENERIC), operation, new RISCVMachineBlock(null),
+                        new int[]{6, 6, 6, 7}, 7);
+                ++failures;
+                System.out.printf("%s with source aliasing scratch was accepted\n", operation);
+            } catch (IllegalArgumentException e) {
+                ++checks;
+            }
+        }
+        System.out.printf("strength reduction: %d checks, %d failures\n", checks, failures);
+        if (failures != 0) System.exit(1);
+    }
+}
@@ -0,0 +1,58 @@
+public enum RISCVTargetProfile {
+    GENERIC(1, 4, 34, 2, 3, 20), SLOW_MULTIPLY(1, 32, 32, 2, 32, 32), SIZE(1, 1, 1, 2, 3, 20);
+
+    public final int aluCost;
+    public final int multiplyCost;
+    public final int divideCost;
+    public final int loadLatency;
+    public final int multiplyLatency;
+    public final int divideLatency;
+
+    RISCVTargetProfile(int aluCost, int multiplyCost, int divideCost, int loadLatency, int multiplyLatency,
+            int divideLatency) {
+        this.aluCost = aluCost;
+        this.multiplyCost = multiplyCost;
+        this.divideCost = divideCost;
+        this.loadLatency = loadLatency;
+        this.multiplyLatency = multiplyLatency;
+        this.divideLatency = divideLatency;
+    }
+
+    public int latency(RISCVOpcode opcode) {
+        switch (opcode) {
+            case LW:
+                return loadLatency;
+            case MUL:
+            case MULH:
+                return multiplyLatency;
+            case DIV:
+            case REM:
+                return divideLatency;
+            default:
+                return 1;
+        }
+    }
+
+    public int cost(RISCVMachineBlock block) {
+        int result = 0;
+        for (int i = 0; i < block.size(); ++i) {
+            switch (block.opcode(i)) {
+                case MUL:
+                case MULH:
+                    result += multiplyCost;
+                    break;
+                case DIV:
+                case REM:
+                    result += divideCost;
+                    break;
+                case LI:
+                    var value = RISCVOperand.value(block.operand(i, 1));
+                    result += value >= -2048 && value < 2048 ? aluCost : 2 * aluCost;
+                    break;
+                default:
+                    result += aluCost;
+            }
+        }
+        return result;
+    }
+}
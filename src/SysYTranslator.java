@@ -1,4 +1,7 @@
 import kotlin.Pair;
+import org.bytedeco.llvm.LLVM.LLVMBasicBlockRef;
+import org.bytedeco.llvm.LLVM.LLVMValueRef;
+import org.bytedeco.llvm.global.LLVM;
 import org.llvm4j.llvm4j.*;
 import org.llvm4j.llvm4j.Module;
 import org.llvm4j.optional.Option;
@@ -21,6 +24,8 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
     private final TypeHelper typeHelper = new TypeHelper();
     private final CastHelper castHelper = new CastHelper();
     private final DerefHelper derefHelper = new DerefHelper();
+    private final SSAHelper ssaHelper = new SSAHelper();
+    private final boolean ssa;
 
     private final AggregateBuilder<ConstantOrInitializer> nonConstAggregate = new AggregateBuilder<>(
             new InitializerAggregateHelper());
@@ -35,12 +40,22 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
     private BasicBlock currentCondBlock;
     private BasicBlock currentMergeBlock;
 
+    public SysYTranslator() {
+        this(false);
+    }
+
+    public SysYTranslator(boolean ssa) {
+        this.ssa = ssa;
+    }
+
     private Value lookupSymbol(String name) {
         Value res = null;
 
         var local = contextStack.peek();
-        if (local != null) res = local.lookup(name);
-        if (res != null) return res;
+        if (local != null) {
+            var symbol = local.lookup(name);
+            if (symbol instanceof Value) return (Value) symbol;
+        }
 
         res = module.getFunction(name).toNullable();
         if (res != null) return res;
@@ -49,6 +64,20 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         return res;
     }
 
+    private SSAVariable lookupVariable(SysYParser.VarAccessContext ctx) {
+        if (!ctx.arrayPostfix().arrayPostfixSingle().isEmpty()) return null;
+        var local = contextStack.peek();
+        if (local == null) return null;
+        var res = local.lookup(ctx.IDENT().getText());
+        return res instanceof SSAVariable ? (SSAVariable) res : null;
+    }
+
+    private boolean isSSAVariable(Type type, SysYParser.VarDefEntryContext entry) {
+        if (!ssa || !typeHelper.sameType(type, INT_TYPE)) return false;
+        return entry.init == null ||
+               ((SysYParser.EqInitializerContext) entry.init).value instanceof SysYParser.SingleContext;
+    }
+
     private SymbolContext newSymbolContext() {
         var symbols = new SymbolContext(contextStack.peek());
         contextStack.push(symbols);
@@ -102,6 +131,17 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
                 var name = entry.name.getText();
 
                 var symbols = contextStack.peek();
+                if (symbols != null && isSSAVariable(type, entry)) {
+                    var variable = new SSAVariable(name, type);
+                    symbols.define(name, variable);
+                    if (entry.init != null) {
+                        var init = (SysYParser.SingleContext) ((SysYParser.EqInitializerContext) entry.init).value;
+                        ssaHelper.writeVariable(variable, currentBlock,
+                                castHelper.convertTo(visit(init.expr()), type));
+                    }
+                    return;
+                }
+
                 if (symbols == null) currentAggregate = constAggregate;
                 else currentAggregate = nonConstAggregate;
 
@@ -129,11 +169,18 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         var symbols = newSymbolContext();
         switchBlock(context.newBasicBlock(func.getName() + "Entry"));
         func.addBasicBlock(currentBlock);
+        ssaHelper.sealBlock(currentBlock);
         currentFunction = func;
         var params = ctx.funcParam();
         for (int i = 0; i < params.size(); ++i) {
             var param = params.get(i).name.getText();
             var arg = func.getParameter(i).unwrap();
+            if (ssa && typeHelper.sameType(arg.getType(), INT_TYPE)) {
+                var variable = new SSAVariable(param, arg.getType());
+                symbols.define(param, variable);
+                ssaHelper.writeVariable(variable, currentBlock, arg);
+                continue;
+            }
             var paramVar = irBuilder.buildAlloca(arg.getType(), Option.of(param));
             irBuilder.buildStore(paramVar, arg);
             symbols.define(param, paramVar);
@@ -145,6 +192,7 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
             else if (funcType.getReturnType().isVoidType()) irBuilder.buildReturn(Option.empty());
             else irBuilder.buildUnreachable();
         }
+        ssaHelper.finish();
         currentBlock = null;
         currentFunction = null;
         contextStack.pop();
@@ -176,6 +224,8 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
 
     @Override
     public Value visitAccess(SysYParser.AccessContext ctx) {
+        var variable = lookupVariable(ctx.varAccess());
+        if (variable != null) return ssaHelper.readVariable(variable, currentBlock);
         var ptr = visit(ctx.varAccess());
         var ptrType = typeHelper.ensurePointerType(ptr.getType());
         if (ptrType.getElementType().isArrayType())
@@ -252,10 +302,15 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         currentFunction.addBasicBlock(mergeBlock);
         if (shortcutOn) irBuilder.buildConditionalBranch(l, mergeBlock, rightBlock);
         else irBuilder.buildConditionalBranch(l, rightBlock, mergeBlock);
+        ssaHelper.addPredecessor(rightBlock, oldBlock);
+        ssaHelper.addPredecessor(mergeBlock, oldBlock);
+        ssaHelper.sealBlock(rightBlock);
         switchBlock(rightBlock);
         var r = castHelper.convertTo(visit(rExp), BOOL_TYPE);
         rightBlock = currentBlock;
         irBuilder.buildBranch(mergeBlock);
+        ssaHelper.addPredecessor(mergeBlock, rightBlock);
+        ssaHelper.sealBlock(mergeBlock);
         switchBlock(mergeBlock);
         var res = irBuilder.buildPhi(BOOL_TYPE, Option.of("ShortcutMerge"));
         res.addIncoming(new Pair<>(oldBlock, shortcutOn ? TRUE : FALSE), new Pair<>(rightBlock, r));
@@ -306,6 +361,13 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
 
     @Override
     public Value visitAssignment(SysYParser.AssignmentContext ctx) {
+        var variable = lookupVariable(ctx.lvalue);
+        if (variable != null) {
+            var value = castHelper.convertTo(visit(ctx.value), variable.type);
+            ssaHelper.writeVariable(variable, currentBlock, value);
+            return value;
+        }
+
         var ptr = visit(ctx.lvalue);
         var value = visit(ctx.value);
         var ptrType = typeHelper.ensurePointerType(ptr.getType()).getElementType();
@@ -321,21 +383,32 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         var mergeBlock = context.newBasicBlock("IfMerge");
         currentFunction.addBasicBlock(trueBlock);
         currentFunction.addBasicBlock(mergeBlock);
+        ssaHelper.addPredecessor(trueBlock, oldBlock);
+        ssaHelper.sealBlock(trueBlock);
         switchBlock(trueBlock);
         visit(ctx.stmtTrue);
-        if (!blockEnded) irBuilder.buildBranch(mergeBlock);
+        if (!blockEnded) {
+            irBuilder.buildBranch(mergeBlock);
+            ssaHelper.addPredecessor(mergeBlock, currentBlock);
+        }
 
         var falseBlock = mergeBlock;
         if (ctx.stmtFalse != null) {
             falseBlock = context.newBasicBlock("IfFalse");
             currentFunction.addBasicBlock(falseBlock);
+            ssaHelper.addPredecessor(falseBlock, oldBlock);
+            ssaHelper.sealBlock(falseBlock);
             switchBlock(falseBlock);
             visit(ctx.stmtFalse);
-            if (!blockEnded) irBuilder.buildBranch(mergeBlock);
-        }
+            if (!blockEnded) {
+                irBuilder.buildBranch(mergeBlock);
+                ssaHelper.addPredecessor(mergeBlock, currentBlock);
+            }
+        } else ssaHelper.addPredecessor(mergeBlock, oldBlock);
 
         switchBlock(oldBlock);
         irBuilder.buildConditionalBranch(cond, trueBlock, falseBlock);
+        ssaHelper.sealBlock(mergeBlock);
         switchBlock(mergeBlock);
         return null;
     }
@@ -345,6 +418,7 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         var condBlock = context.newBasicBlock("WhileCond");
         currentFunction.addBasicBlock(condBlock);
         irBuilder.buildBranch(condBlock);
+        ssaHelper.addPredecessor(condBlock, currentBlock);
         switchBlock(condBlock);
         var cond = castHelper.convertTo(visit(ctx.cond), BOOL_TYPE);
         var loopBlock = context.newBasicBlock("WhileLoop");
@@ -352,6 +426,9 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         currentFunction.addBasicBlock(loopBlock);
         currentFunction.addBasicBlock(mergeBlock);
         irBuilder.buildConditionalBranch(cond, loopBlock, mergeBlock);
+        ssaHelper.addPredecessor(loopBlock, currentBlock);
+        ssaHelper.addPredecessor(mergeBlock, currentBlock);
+        ssaHelper.sealBlock(loopBlock);
         switchBlock(loopBlock);
 
         var lastCond = currentCondBlock;
@@ -362,7 +439,12 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         currentCondBlock = lastCond;
         currentMergeBlock = lastMerge;
 
-        if (!blockEnded) irBuilder.buildBranch(condBlock);
+        if (!blockEnded) {
+            irBuilder.buildBranch(condBlock);
+            ssaHelper.addPredecessor(condBlock, currentBlock);
+        }
+        ssaHelper.sealBlock(condBlock);
+        ssaHelper.sealBlock(mergeBlock);
         switchBlock(mergeBlock);
         return null;
     }
@@ -370,13 +452,15 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
     @Override
     public Value visitBreak(SysYParser.BreakContext ctx) {
         markBlockEnd();
-        return irBuilder.buildBranch(Objects.requireNonNull(currentMergeBlock));
+        ssaHelper.addPredecessor(Objects.requireNonNull(currentMergeBlock), currentBlock);
+        return irBuilder.buildBranch(currentMergeBlock);
     }
 
     @Override
     public Value visitContinue(SysYParser.ContinueContext ctx) {
         markBlockEnd();
-        return irBuilder.buildBranch(Objects.requireNonNull(currentCondBlock));
+        ssaHelper.addPredecessor(Objects.requireNonNull(currentCondBlock), currentBlock);
+        return irBuilder.buildBranch(currentCondBlock);
     }
 
     @Override
@@ -397,9 +481,19 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         R aggregate(Type type, List<R> content);
     }
 
+    private static class SSAVariable {
+        private final String name;
+        private final Type type;
+
+        public SSAVariable(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
     private static class SymbolContext {
         private final SymbolContext parent;
-        private final Map<String, Value> symbols = new HashMap<>();
+        private final Map<String, Object> symbols = new HashMap<>();
 
         public SymbolContext(SymbolContext parent) {
             this.parent = parent;
@@ -409,13 +503,13 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
             return symbols.containsKey(name);
         }
 
-        public Value lookup(String name) {
+        public Object lookup(String name) {
             if (containsLocal(name)) return symbols.get(name);
             if (parent != null) return parent.lookup(name);
             return null;
         }
 
-        public void define(String name, Value value) {
+        public void define(String name, Object value) {
             if (containsLocal(name)) return;
             symbols.put(name, value);
         }
@@ -447,6 +541,112 @@ public class SysYTranslator extends SysYParserBaseVisitor<Value> {
         }
     }
 
+    private class SSAHelper {
+        private final HashMap<LLVMBasicBlockRef, HashMap<SSAVariable, LLVMValueRef>> currentDef = new HashMap<>();
+        private final HashMap<LLVMBasicBlockRef, HashMap<SSAVariable, LLVMValueRef>> incompletePhis = new HashMap<>();
+        private final HashMap<LLVMBasicBlockRef, ArrayList<LLVMBasicBlockRef>> predecessors = new HashMap<>();
+        private final HashSet<LLVMBasicBlockRef> sealed = new HashSet<>();
+        private final HashMap<LLVMValueRef, LLVMValueRef> replaced = new HashMap<>();
+
+        public void addPredecessor(BasicBlock block, BasicBlock pred) {
+            predecessors.computeIfAbsent(block.getRef(), k -> new ArrayList<>()).add(pred.getRef());
+        }
+
+        public void writeVariable(SSAVariable variable, BasicBlock block, Value value) {
+            writeVariable(variable, block.getRef(), value.getRef());
+        }
+
+        public Value readVariable(SSAVariable variable, BasicBlock block) {
+            return new Value(readVariable(variable, block.getRef()));
+        }
+
+        public void sealBlock(BasicBlock block) {
+            var ref = block.getRef();
+            var phis = incompletePhis.remove(ref);
+            if (phis != null) phis.forEach((variable, phi) -> addPhiOperands(variable, phi));
+            sealed.add(ref);
+        }
+
+        public void finish() {
+            replaced.keySet().forEach(LLVM::LLVMInstructionEraseFromParent);
+            currentDef.clear();
+            incompletePhis.clear();
+            predecessors.clear();
+            sealed.clear();
+            replaced.clear();
+        }
+
+        private void writeVariable(SSAVariable variable, LLVMBasicBlockRef block, LLVMValueRef value) {
+            currentDef.computeIfAbsent(block, k -> new HashMap<>()).put(variable, value);
+        }
+
+        private LLVMValueRef resolve(LLVMValueRef value) {
+            while (replaced.containsKey(value)) value = replaced.get(value);
+            return value;
+        }
+
+        private LLVMValueRef readVariable(SSAVariable variable, LLVMBasicBlockRef block) {
+            var defs = currentDef.get(block);
+            if (defs != null && defs.containsKey(variable)) return resolve(defs.get(variable));
+
+            var preds = predecessors.getOrDefault(block, new ArrayList<>());
+            LLVMValueRef value;
+            if (!sealed.contains(block)) {
+                value = newPhi(variable, block);
+                incompletePhis.computeIfAbsent(block, k -> new HashMap<>()).put(variable, value);
+            } else if (preds.isEmpty()) value = LLVM.LLVMGetUndef(variable.type.getRef());
+            else if (preds.size() == 1) value = readVariable(variable, preds.get(0));
+            else {
+                value = newPhi(variable, block);
+                writeVariable(variable, block, value);
+                value = addPhiOperands(variable, value);
+            }
+            writeVariable(variable, block, value);
+            return value;
+        }
+
+        private LLVMValueRef newPhi(SSAVariable variable, LLVMBasicBlockRef block) {
+            var builder = irBuilder.getRef();
+            var insertBlock = LLVM.LLVMGetInsertBlock(builder);
+            var first = LLVM.LLVMGetFirstInstruction(block);
+            if (first == null) LLVM.LLVMPositionBuilderAtEnd(builder, block);
+            else LLVM.LLVMPositionBuilderBefore(builder, first);
+            var phi = LLVM.LLVMBuildPhi(builder, variable.type.getRef(), variable.name);
+            LLVM.LLVMPositionBuilderAtEnd(builder, insertBlock);
+            return phi;
+        }
+
+        private LLVMValueRef addPhiOperands(SSAVariable variable, LLVMValueRef phi) {
+            var block = LLVM.LLVMGetInstructionParent(phi);
+            for (var pred : predecessors.getOrDefault(block, new ArrayList<>()))
+                LLVM.LLVMAddIncoming(phi, readVariable(variable, pred), pred, 1);
+            return tryRemoveTrivialPhi(phi);
+        }
+
+        private LLVMValueRef tryRemoveTrivialPhi(LLVMValueRef phi) {
+            LLVMValueRef same = null;
+            var incomingCnt = LLVM.LLVMCountIncoming(phi);
+            for (int i = 0; i < incomingCnt; ++i) {
+                var value = LLVM.LLVMGetIncomingValue(phi, i);
+                if (value.equals(same) || value.equals(phi)) continue;
+                if (same != null) return phi;
+                same = value;
+            }
+            if (same == null) same = LLVM.LLVMGetUndef(LLVM.LLVMTypeOf(phi));
+
+            var users = new ArrayList<LLVMValueRef>();
+            for (var use = LLVM.LLVMGetFirstUse(phi); use != null; use = LLVM.LLVMGetNextUse(use)) {
+                var user = LLVM.LLVMGetUser(use);
+                if (!user.equals(phi) && LLVM.LLVMIsAPHINode(user) != null) users.add(user);
+            }
+            LLVM.LLVMReplaceAllUsesWith(phi, same);
+            replaced.put(phi, same);
+            for (var user : users)
+                if (!replaced.containsKey(user)) tryRemoveTrivialPhi(user);
+            return same;
+        }
+    }
+
     private class DerefHelper {
         private final List<Value> cache = new ArrayList<>();
         private Value value;